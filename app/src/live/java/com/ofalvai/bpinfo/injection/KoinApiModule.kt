@@ -18,6 +18,7 @@ package com.ofalvai.bpinfo.injection
 
 import android.content.SharedPreferences
 import com.android.volley.RequestQueue
+import com.android.volley.toolbox.BaseHttpStack
 import com.android.volley.toolbox.Volley
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.api.AlertApiClient
@@ -32,7 +33,8 @@ import org.koin.dsl.module.module
 
 val apiModule = module {
 
-    single<RequestQueue> { Volley.newRequestQueue(androidContext()) }
+    // The HTTP transport is provided by networkModule
+    single<RequestQueue> { Volley.newRequestQueue(androidContext(), get<BaseHttpStack>()) }
 
     @Suppress("RemoveExplicitTypeArguments")
     single<AlertApiClient> {
@@ -48,16 +50,16 @@ val apiModule = module {
 
         if (keyCurrent == keyBkkFutar) {
             analytics.setDataSource(Analytics.DATA_SOURCE_FUTAR)
-            FutarApiClient(get(), sharedPreferences, androidContext())
+            FutarApiClient(get(), sharedPreferences, androidContext(), get())
         } else {
             analytics.setDataSource(Analytics.DATA_SOURCE_BKKINFO)
-            BkkInfoClient(get(), sharedPreferences, androidContext())
+            BkkInfoClient(get(), sharedPreferences, androidContext(), get())
         }
     }
 
     single { NoticeClient(get(), androidContext(), get()) }
 
-    single { RouteListClient(get()) }
+    single { RouteListClient(get(), get()) }
 
     single { SubscriptionClient(get()) }
 }
\ No newline at end of file
@@ -27,12 +27,19 @@ import android.os.Build
 import android.preference.PreferenceManager
 import androidx.core.content.getSystemService
 import androidx.multidex.MultiDex
+import androidx.work.DelegatingWorkerFactory
 import com.jakewharton.threetenabp.AndroidThreeTen
 import com.ofalvai.bpinfo.api.subscription.SubscriptionClient
 import com.ofalvai.bpinfo.injection.allModules
+import com.ofalvai.bpinfo.notifications.AlertPrefetchWorker
+import com.ofalvai.bpinfo.notifications.SubscriptionQueue
+import com.ofalvai.bpinfo.notifications.SubscriptionStore
+import com.ofalvai.bpinfo.notifications.SubscriptionSyncWorker
 import com.ofalvai.bpinfo.notifications.TokenUploadWorker
+import com.ofalvai.bpinfo.repository.AlertsRepository
 import com.ofalvai.bpinfo.util.Analytics
 import com.ofalvai.bpinfo.util.LocaleManager
+import org.koin.android.ext.android.get
 import org.koin.android.ext.android.inject
 import org.koin.android.ext.android.startKoin
 import org.koin.android.logger.AndroidLogger
@@ -48,6 +55,8 @@ class BpInfoApplication :
     private val sharedPreferences: SharedPreferences by inject()
     private val analytics: Analytics by inject()
     private val subscriptionClient: SubscriptionClient by inject()
+    private val subscriptionQueue: SubscriptionQueue by inject()
+    private val subscriptionStore: SubscriptionStore by inject()
 
     override fun onCreate() {
         super.onCreate()
@@ -101,9 +110,18 @@ class BpInfoApplication :
         }
     }
 
-    override fun getWorkManagerConfiguration() = androidx.work.Configuration.Builder()
-        .setWorkerFactory(TokenUploadWorker.Factory(subscriptionClient, analytics))
-        .build()
+    override fun getWorkManagerConfiguration(): androidx.work.Configuration {
+        val workerFactory = DelegatingWorkerFactory()
+        workerFactory.addFactory(TokenUploadWorker.Factory(subscriptionClient, analytics))
+        workerFactory.addFactory(AlertPrefetchWorker.Factory { get<AlertsRepository>() })
+        workerFactory.addFactory(SubscriptionSyncWorker.Factory(
+            subscriptionClient, subscriptionQueue, subscriptionStore, analytics
+        ))
+
+        return androidx.work.Configuration.Builder()
+            .setWorkerFactory(workerFactory)
+            .build()
+    }
 
     private fun initKoin() {
         val logger = if (BuildConfig.DEBUG) AndroidLogger() else EmptyLogger()
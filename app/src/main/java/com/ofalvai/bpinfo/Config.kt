@@ -16,6 +16,7 @@
 
 package com.ofalvai.bpinfo
 
+import org.threeten.bp.ZoneId
 import org.threeten.bp.format.DateTimeFormatter
 
 
@@ -46,12 +47,32 @@ object Config {
          */
         const val ALERT_RECENT_THRESHOLD_HOURS = 24
 
+        /**
+         * Persisted alert lists older than this are not displayed while the network request is
+         * in flight, because they are likely to contain many ended alerts.
+         */
+        const val ALERT_CACHE_MAX_AGE_HOURS = 24
+
+        /**
+         * Idle connections kept alive for reuse. The app talks to 3 hosts: the alert API, our
+         * backend and Firebase Hosting.
+         */
+        const val HTTP_MAX_IDLE_CONNECTIONS = 5
+
+        const val HTTP_KEEP_ALIVE_MIN = 5
+
         /**
          * ID of an alert that should open when clicking the test notification
          */
         const val TEST_NOTIFICATION_ALERT_ID = "BKK_bkkinfo-15346"
     }
 
+    /**
+     * We can safely assume the timezone of the API
+     */
+    @JvmField
+    val API_ZONE: ZoneId = ZoneId.of("Europe/Budapest")
+
     @JvmField
     val FORMATTER_TIME: DateTimeFormatter = DateTimeFormatter.ofPattern("HH:mm")
 
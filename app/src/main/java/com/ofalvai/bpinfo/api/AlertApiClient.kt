@@ -19,11 +19,18 @@ package com.ofalvai.bpinfo.api
 import com.ofalvai.bpinfo.model.Alert
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
 
+/**
+ * See AlertApiClientCoroutines.kt for the suspending variants of these methods
+ */
 interface AlertApiClient {
 
-    fun fetchAlertList(callback: AlertListCallback)
+    fun fetchAlertList(callback: AlertListCallback): Cancellable
 
-    fun fetchAlert(id: String, alertListType: AlertListType, callback: AlertDetailCallback)
+    fun fetchAlert(
+        id: String,
+        alertListType: AlertListType,
+        callback: AlertDetailCallback
+    ): Cancellable
 
     interface AlertListCallback {
 
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.ofalvai.bpinfo.api
+
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.ui.alertlist.AlertListType
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+/**
+ * Suspending adapters of the callback based [AlertApiClient] methods. Cancelling the calling
+ * coroutine cancels the underlying request too, so its response is not parsed and delivered.
+ */
+
+class AlertLists(val todayAlerts: List<Alert>, val futureAlerts: List<Alert>)
+
+suspend fun AlertApiClient.awaitAlertList(): AlertLists {
+    return suspendCancellableCoroutine { continuation ->
+        val request = fetchAlertList(object : AlertApiClient.AlertListCallback {
+            override fun onAlertListResponse(todayAlerts: List<Alert>, futureAlerts: List<Alert>) {
+                continuation.resume(AlertLists(todayAlerts, futureAlerts))
+            }
+
+            override fun onError(ex: Exception) {
+                continuation.resumeWithException(ex)
+            }
+        })
+        continuation.invokeOnCancellation { request.cancel() }
+    }
+}
+
+suspend fun AlertApiClient.awaitAlert(id: String, alertListType: AlertListType): Alert {
+    return suspendCancellableCoroutine { continuation ->
+        val request = fetchAlert(id, alertListType, object : AlertApiClient.AlertDetailCallback {
+            override fun onAlertResponse(alert: Alert) {
+                continuation.resume(alert)
+            }
+
+            override fun onError(ex: Exception) {
+                continuation.resumeWithException(ex)
+            }
+        })
+        continuation.invokeOnCancellation { request.cancel() }
+    }
+}
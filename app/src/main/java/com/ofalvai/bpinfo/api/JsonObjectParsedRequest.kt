@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api
+
+import com.android.volley.NetworkResponse
+import com.android.volley.Response
+import org.json.JSONObject
+
+/**
+ * Request that builds domain objects from a JSON object response on the network thread
+ */
+class JsonObjectParsedRequest<T>(
+    url: String,
+    private val parser: (JSONObject) -> T,
+    listener: Response.Listener<T>,
+    errorListener: Response.ErrorListener
+) : ParsedRequest<T>(Method.GET, url, listener, errorListener) {
+
+    override fun parse(response: NetworkResponse): T {
+        return parser(JSONObject(bodyAsString(response)))
+    }
+}
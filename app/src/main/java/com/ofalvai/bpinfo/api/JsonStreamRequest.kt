@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api
+
+import android.util.JsonReader
+import com.android.volley.NetworkResponse
+import com.android.volley.Response
+import com.android.volley.toolbox.HttpHeaderParser
+import java.io.ByteArrayInputStream
+import java.io.InputStreamReader
+
+/**
+ * Request that feeds the raw response body into a streaming [JsonReader] based parser.
+ * Unlike JsonObjectRequest, no intermediate JSONObject tree is built.
+ *
+ * JsonReader throws IOException, IllegalStateException and NumberFormatException on unexpected
+ * input, parsers throw JSONException on missing required fields.
+ */
+class JsonStreamRequest<T>(
+    url: String,
+    private val parser: (JsonReader) -> T,
+    listener: Response.Listener<T>,
+    errorListener: Response.ErrorListener
+) : ParsedRequest<T>(Method.GET, url, listener, errorListener) {
+
+    override fun parse(response: NetworkResponse): T {
+        val charset = HttpHeaderParser.parseCharset(response.headers, DEFAULT_CHARSET)
+        val streamReader = InputStreamReader(ByteArrayInputStream(response.data), charset)
+        return JsonReader(streamReader).use { parser(it) }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api
+
+import com.android.volley.AuthFailureError
+import com.android.volley.Header
+import com.android.volley.Request
+import com.android.volley.toolbox.BaseHttpStack
+import com.android.volley.toolbox.HttpResponse
+import okhttp3.MediaType
+import okhttp3.OkHttpClient
+import okhttp3.RequestBody
+import java.io.IOException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Volley transport executing requests with OkHttp instead of HttpURLConnection.
+ *
+ * All requests share the connection pool of [client], so connections (and their TLS sessions) are
+ * kept alive and reused between requests, and multiplexed when the server supports HTTP/2.
+ * OkHttp also requests and decompresses gzip responses transparently.
+ *
+ * Caching is still handled by Volley's own disk cache, so [client] shouldn't have a cache.
+ */
+class OkHttpStack(private val client: OkHttpClient) : BaseHttpStack() {
+
+    @Throws(IOException::class, AuthFailureError::class)
+    override fun executeRequest(
+        request: Request<*>,
+        additionalHeaders: Map<String, String>
+    ): HttpResponse {
+        // Derived clients share the connection pool and dispatcher of the original one
+        val timeoutMs = request.timeoutMs.toLong()
+        val requestClient = client.newBuilder()
+            .connectTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+            .readTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+            .writeTimeout(timeoutMs, TimeUnit.MILLISECONDS)
+            .build()
+
+        val builder = okhttp3.Request.Builder().url(request.url)
+        request.headers.forEach { (name, value) -> builder.header(name, value) }
+        additionalHeaders.forEach { (name, value) -> builder.header(name, value) }
+        setMethodAndBody(builder, request)
+
+        val response = requestClient.newCall(builder.build()).execute()
+
+        val responseHeaders = response.headers()
+        val headers = (0 until responseHeaders.size()).map {
+            Header(responseHeaders.name(it), responseHeaders.value(it))
+        }
+
+        val body = response.body()
+        return if (body == null) {
+            HttpResponse(response.code(), headers)
+        } else {
+            // Content length is unknown (-1) for transparently decompressed responses
+            val contentLength = body.contentLength().coerceIn(0, Int.MAX_VALUE.toLong()).toInt()
+            HttpResponse(response.code(), headers, contentLength, body.byteStream())
+        }
+    }
+
+    @Throws(AuthFailureError::class)
+    private fun setMethodAndBody(builder: okhttp3.Request.Builder, request: Request<*>) {
+        when (request.method) {
+            Request.Method.GET -> builder.get()
+            Request.Method.DELETE -> builder.delete(createBody(request))
+            Request.Method.POST -> builder.post(createBody(request) ?: emptyBody(request))
+            Request.Method.PUT -> builder.put(createBody(request) ?: emptyBody(request))
+            Request.Method.PATCH -> builder.patch(createBody(request) ?: emptyBody(request))
+            Request.Method.HEAD -> builder.head()
+            Request.Method.OPTIONS -> builder.method("OPTIONS", null)
+            Request.Method.TRACE -> builder.method("TRACE", null)
+            else -> throw IllegalStateException("Unknown method type: ${request.method}")
+        }
+    }
+
+    @Throws(AuthFailureError::class)
+    private fun createBody(request: Request<*>): RequestBody? {
+        val body = request.body ?: return null
+        return RequestBody.create(MediaType.parse(request.bodyContentType), body)
+    }
+
+    private fun emptyBody(request: Request<*>): RequestBody {
+        return RequestBody.create(MediaType.parse(request.bodyContentType), ByteArray(0))
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api
+
+import com.android.volley.Cache
+import com.android.volley.NetworkResponse
+import com.android.volley.ParseError
+import com.android.volley.Request
+import com.android.volley.Response
+import com.android.volley.toolbox.HttpHeaderParser
+
+/**
+ * Base of requests that build the final domain objects in [parseNetworkResponse], which runs on
+ * Volley's network thread. Listeners on the main thread only receive the ready result.
+ *
+ * Any exception thrown by [parse] is delivered to the error listener as a [ParseError].
+ *
+ * Volley sends the validators (ETag, Last-Modified) of its cached response with every request to
+ * a cached URL. If [parsedResponseCache] is set and the response has the same validator as a
+ * previously parsed one (for example, a 304 Not Modified response), the previous result is
+ * reused and [parse] is not called.
+ */
+abstract class ParsedRequest<T>(
+    method: Int,
+    url: String,
+    private val listener: Response.Listener<T>,
+    errorListener: Response.ErrorListener
+) : Request<T>(method, url, errorListener) {
+
+    companion object {
+        const val DEFAULT_CHARSET = "utf-8"
+    }
+
+    /**
+     * Stores the parsed results for reusing them when the response is not modified
+     */
+    var parsedResponseCache: ParsedResponseCache? = null
+
+    /**
+     * Identifies the parsed result in [parsedResponseCache], defaults to the cache key.
+     * Needs to be set if the parsed result depends on more than the response body (eg. language)
+     */
+    var parsedResultKey: String? = null
+
+    /**
+     * Applied to a reused parsed result on the network thread. Needed when the parsed result
+     * depends on the current time.
+     */
+    var onReuse: ((T) -> T)? = null
+
+    /**
+     * Overrides the key of Volley's response cache, which is the URL by default. Needed when the
+     * URL contains parameters that change on every request (eg. current time), otherwise there
+     * would be no cached response to revalidate.
+     */
+    var stableCacheKey: String? = null
+
+    override fun getCacheKey(): String = stableCacheKey ?: super.getCacheKey()
+
+    /**
+     * Called on the network thread with the raw response
+     */
+    @Throws(Exception::class)
+    protected abstract fun parse(response: NetworkResponse): T
+
+    override fun parseNetworkResponse(response: NetworkResponse): Response<T> {
+        return try {
+            val cacheEntry = HttpHeaderParser.parseCacheHeaders(response)
+            Response.success(parseOrReuse(response, cacheEntry), cacheEntry)
+        } catch (ex: Exception) {
+            Response.error(ParseError(ex))
+        }
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private fun parseOrReuse(response: NetworkResponse, cacheEntry: Cache.Entry?): T {
+        val cache = parsedResponseCache
+        val validator = cacheEntry?.let { getValidator(it) }
+        if (cache == null || validator == null) {
+            return parse(response)
+        }
+
+        val key = parsedResultKey ?: cacheKey
+        val reusedEntry = cache.get(key, validator)
+        if (reusedEntry != null) {
+            addMarker("parsed-result-reused")
+            val result = reusedEntry.result as T
+            return onReuse?.invoke(result) ?: result
+        }
+
+        val result = parse(response)
+        cache.put(key, validator, result)
+        return result
+    }
+
+    private fun getValidator(cacheEntry: Cache.Entry): String? {
+        return when {
+            cacheEntry.etag != null -> cacheEntry.etag
+            cacheEntry.lastModified > 0 -> cacheEntry.lastModified.toString()
+            else -> null
+        }
+    }
+
+    override fun deliverResponse(response: T) {
+        listener.onResponse(response)
+    }
+
+    protected fun bodyAsString(response: NetworkResponse): String {
+        val charset = HttpHeaderParser.parseCharset(response.headers, DEFAULT_CHARSET)
+        return String(response.data, charset(charset))
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api
+
+import android.util.LruCache
+
+/**
+ * Keeps the last parsed result of requests in memory, identified by the validator (ETag or
+ * Last-Modified) of the response it was parsed from.
+ *
+ * When Volley revalidates its cached response and the server answers with 304 Not Modified, the
+ * response body is the same as before, so the already parsed result can be reused without parsing
+ * the body again.
+ */
+class ParsedResponseCache(maxSize: Int = DEFAULT_MAX_SIZE) {
+
+    companion object {
+        private const val DEFAULT_MAX_SIZE = 8
+    }
+
+    class Entry(val validator: String, val result: Any?)
+
+    private val entries = LruCache<String, Entry>(maxSize)
+
+    /**
+     * @return The cached entry if it was parsed from a response with the same validator, or null
+     */
+    fun get(key: String, validator: String): Entry? {
+        val entry = entries.get(key) ?: return null
+        return if (entry.validator == validator) entry else null
+    }
+
+    fun put(key: String, validator: String, result: Any?) {
+        entries.put(key, Entry(validator, result))
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api
+
+import com.ofalvai.bpinfo.model.Route
+
+/**
+ * Session-wide registry of parsed routes, shared by all API clients.
+ *
+ * The same route is affected by many alerts, and it's also in the route list. Parsers look up
+ * routes here, so each distinct route is kept in memory only once, instead of once per alert per
+ * response.
+ *
+ * Parsing happens on Volley's network threads, so access is synchronized.
+ */
+class RouteRegistry {
+
+    private val routesByKey = HashMap<String, Route>()
+
+    private val routes = HashMap<Route, Route>()
+
+    /**
+     * Returns the route registered with the given key, or builds and registers it.
+     * Useful when building the route is expensive (eg. its colors need to be matched).
+     * @param key Needs to identify the route with all its properties, keys of different APIs
+     * should not overlap
+     */
+    @Synchronized
+    fun getOrPut(key: String, build: () -> Route): Route {
+        return routesByKey.getOrPut(key) { intern(build()) }
+    }
+
+    /**
+     * Returns the registered instance equal to the given route, or registers the given route
+     */
+    @Synchronized
+    fun intern(route: Route): Route {
+        return routes.getOrPut(route) { route }
+    }
+}
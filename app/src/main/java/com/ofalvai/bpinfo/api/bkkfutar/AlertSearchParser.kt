@@ -0,0 +1,482 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api.bkkfutar
+
+import android.annotation.SuppressLint
+import android.graphics.Color
+import android.util.JsonReader
+import android.util.JsonToken
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import com.ofalvai.bpinfo.api.RouteRegistry
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+import com.ofalvai.bpinfo.util.nextLongOrNull
+import com.ofalvai.bpinfo.util.nextStringOrNull
+import org.json.JSONException
+import org.threeten.bp.Instant
+import java.io.IOException
+
+/**
+ * Streaming parser of the alert-search.json response. Routes and alerts are read token by token
+ * from data.references, without building the JSON tree of the whole response.
+ * Parsed routes are interned in [RouteRegistry], so alerts of every response share them.
+ * @param isDebugMode In debug mode, alerts that have already ended are kept. Otherwise they are
+ * dropped, because a reused result might contain alerts that ended since the response.
+ * @param crashLog Parse problems are logged here, instead of Crashlytics in tests
+ */
+internal class AlertSearchParser(
+    private val languageCode: String?,
+    private val isDebugMode: Boolean,
+    private val routeRegistry: RouteRegistry,
+    private val crashLog: (String) -> Unit = { FirebaseCrashlytics.getInstance().log(it) }
+) {
+
+    companion object {
+
+        // The website doesn't have a language switch, but the URL has a hidden query parameter:
+        // /alert.php?id=1234&lang=en
+        // This creates a session cookie with the language code, and the website uses this cookie
+        // for language selection.
+        // The only problem: it seems that the cookie has higher priority that the URL
+        // parameter in the language selection, and even though this is a session cookie,
+        // Chrome doesn't delete it immediately after closing the custom tab, but when the last
+        // Chrome process dies.
+        // So it can be really hard to change the website's language AFTER it's been visited with
+        // the app set to a different language.
+        // But it's better than having no language selection at all.
+        private const val LANG_PARAM = "&lang="
+
+        /**
+         * This alert is a special message warning users to update the official app
+         */
+        private const val ALERT_ID_UPDATE_WARNING = "BKK_alert-4"
+
+        private const val ROUTE_KEY_PREFIX = "futar"
+    }
+
+    class Result(
+        val routes: Map<String, Route>,
+        val alertsToday: List<Alert>,
+        val alertsFuture: List<Alert>,
+
+        /**
+         * Every alert of the response, for partitioning them again at a later time
+         */
+        val alerts: List<Alert>
+    ) {
+        val alertsById: Map<String, Alert> = alerts.associateBy { it.id }
+    }
+
+    /**
+     * Alert fields read from the stream. The references object might list alerts before routes,
+     * so affected routes can only be resolved when the whole references object has been read.
+     */
+    private class AlertNode(
+        val id: String,
+        val start: Long,
+        val end: Long,
+        val timestamp: Long,
+        val url: String?,
+        val header: String,
+        val description: String,
+        val routeIds: List<String>
+    )
+
+    private class TranslatedText(val translation: String?, val someTranslation: String?)
+
+    private class References(val routes: Map<String, Route>, val alertNodes: List<AlertNode>)
+
+    @Throws(IOException::class, JSONException::class)
+    fun parse(reader: JsonReader): Result {
+        var hasData = false
+        var alertIdCount = 0
+        var references = References(emptyMap(), emptyList())
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            if (reader.nextName() != AlertSearchContract.DATA) {
+                reader.skipValue()
+                continue
+            }
+
+            hasData = true
+            reader.beginObject()
+            while (reader.hasNext()) {
+                when (reader.nextName()) {
+                    AlertSearchContract.DATA_ENTRY -> alertIdCount = readAlertIdCount(reader)
+                    AlertSearchContract.DATA_REFERENCES -> references = readReferences(reader)
+                    else -> reader.skipValue()
+                }
+            }
+            reader.endObject()
+        }
+        reader.endObject()
+
+        if (!hasData) {
+            throw JSONException("No value for ${AlertSearchContract.DATA}")
+        }
+
+        if (alertIdCount == 0) {
+            return Result(references.routes, emptyList(), emptyList(), emptyList())
+        }
+
+        return partitionAlerts(references)
+    }
+
+    /**
+     * Builds every alert once and splits them into today and future lists in the same pass.
+     * Time ranges in the API response are messed up, so the lists are decided by the start time,
+     * compared to a single point in time for the whole response.
+     */
+    private fun partitionAlerts(references: References): Result {
+        val alerts = ArrayList<Alert>()
+        val alertsToday = ArrayList<Alert>()
+        val alertsFuture = ArrayList<Alert>()
+        val now: Instant = Instant.now()
+
+        for (node in references.alertNodes) {
+            val alert = Alert(
+                node.id, node.start, node.end, node.timestamp, node.url, node.header,
+                node.description, getRoutesByIds(node.routeIds, references.routes), false
+            )
+            alerts.add(alert)
+            addByTime(alert, now, alertsToday, alertsFuture)
+        }
+
+        return Result(references.routes, alertsToday, alertsFuture, alerts)
+    }
+
+    /**
+     * Splits the alerts of a previous result again, compared to the current time.
+     * Used when the result of an unchanged response is reused instead of parsing it again.
+     */
+    fun repartition(result: Result): Result {
+        val alertsToday = ArrayList<Alert>()
+        val alertsFuture = ArrayList<Alert>()
+        val now: Instant = Instant.now()
+
+        for (alert in result.alerts) {
+            addByTime(alert, now, alertsToday, alertsFuture)
+        }
+
+        return Result(result.routes, alertsToday, alertsFuture, result.alerts)
+    }
+
+    private fun addByTime(
+        alert: Alert,
+        now: Instant,
+        alertsToday: MutableList<Alert>,
+        alertsFuture: MutableList<Alert>
+    ) {
+        val alertEndTime: Instant = Instant.ofEpochSecond(alert.end)
+        if (alert.end != 0L && !alertEndTime.isAfter(now) && !isDebugMode) {
+            return
+        }
+
+        val alertStartTime: Instant = Instant.ofEpochSecond(alert.start)
+        if (alertStartTime.isBefore(now)) {
+            alertsToday.add(alert)
+        } else if (alertStartTime.isAfter(now)) {
+            alertsFuture.add(alert)
+        }
+    }
+
+    private fun readAlertIdCount(reader: JsonReader): Int {
+        var count = 0
+        reader.beginObject()
+        while (reader.hasNext()) {
+            if (reader.nextName() == AlertSearchContract.DATA_ENTRY_ALERT_IDS) {
+                reader.beginArray()
+                while (reader.hasNext()) {
+                    reader.skipValue()
+                    count++
+                }
+                reader.endArray()
+            } else {
+                reader.skipValue()
+            }
+        }
+        reader.endObject()
+        return count
+    }
+
+    private fun readReferences(reader: JsonReader): References {
+        var routes: Map<String, Route> = emptyMap()
+        var alertNodes: List<AlertNode> = emptyList()
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                AlertSearchContract.DATA_REFERENCES_ROUTES -> routes = readRoutes(reader)
+                AlertSearchContract.DATA_REFERENCES_ALERTS -> alertNodes = readAlerts(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return References(routes, alertNodes)
+    }
+
+    private fun readAlerts(reader: JsonReader): List<AlertNode> {
+        val alertNodes = ArrayList<AlertNode>()
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            reader.nextName() // Alert ID, also present in the alert object
+            try {
+                val alertNode = readAlert(reader)
+                if (alertNode.id != ALERT_ID_UPDATE_WARNING) {
+                    alertNodes.add(alertNode)
+                }
+            } catch (ex: JSONException) {
+                crashLog("Alert parse: failed to parse:\n$ex")
+            }
+        }
+        reader.endObject()
+
+        return alertNodes
+    }
+
+    /**
+     * Reads the whole alert object before validating it, so that the reader is positioned at the
+     * next alert even if a required field is missing.
+     */
+    @SuppressLint("DefaultLocale")
+    @Throws(JSONException::class)
+    private fun readAlert(reader: JsonReader): AlertNode {
+        var id: String? = null
+        var start: Long? = null
+        var end: Long? = null
+        var timestamp: Long? = null
+        var url: String? = null
+        var hasUrl = false
+        var headerText: TranslatedText? = null
+        var descriptionText: TranslatedText? = null
+        var routeIds: List<String>? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                AlertContract.ALERT_ID -> id = reader.nextStringOrNull()
+                AlertContract.ALERT_START -> start = reader.nextLongOrNull()
+                AlertContract.ALERT_END -> end = reader.nextLongOrNull()
+                AlertContract.ALERT_TIMESTAMP -> timestamp = reader.nextLongOrNull()
+                AlertContract.ALERT_URL -> readTranslatedText(reader)?.let {
+                    hasUrl = true
+                    url = it.someTranslation
+                }
+                AlertContract.ALERT_HEADER -> headerText = readTranslatedText(reader)
+                AlertContract.ALERT_DESC -> descriptionText = readTranslatedText(reader)
+                AlertContract.ALERT_ROUTE_IDS -> routeIds = readStringList(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        if (id == null || start == null || timestamp == null || !hasUrl || routeIds == null) {
+            throw JSONException("Missing required field of alert $id")
+        }
+
+        var header: String? = headerText?.translation
+        if (header == null || header == "null") {
+            // Falling back to the "someTranslation" field
+            header = headerText?.someTranslation
+                ?: throw JSONException("No header translation for alert $id")
+            crashLog("Alert parse: header translation missing")
+        }
+
+        var description: String? = descriptionText?.translation
+        if (description == null) {
+            // Falling back to the "someTranslation" field
+            description = descriptionText?.someTranslation
+                ?: throw JSONException("No description translation for alert $id")
+            crashLog("Alert parse: description translation missing")
+        }
+
+        return AlertNode(
+            id,
+            start,
+            end ?: 0, // There are alerts with unknown ends, represented by null
+            timestamp,
+            url?.let { it + LANG_PARAM + languageCode },
+            header.capitalize(),
+            description,
+            routeIds
+        )
+    }
+
+    /**
+     * Reads the "translations" object (only the current language) and the "someTranslation"
+     * field of a translated field
+     */
+    private fun readTranslatedText(reader: JsonReader): TranslatedText? {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull()
+            return null
+        }
+
+        var translation: String? = null
+        var someTranslation: String? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                AlertContract.ALERT_HEADER_TRANSLATIONS -> translation = readTranslation(reader)
+                AlertSearchContract.LANG_SOME -> someTranslation = reader.nextStringOrNull()
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return TranslatedText(translation, someTranslation)
+    }
+
+    /**
+     * Reads the current language's translation from the "translations" object.
+     * It might be null or completely missing from the response.
+     */
+    private fun readTranslation(reader: JsonReader): String? {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull()
+            return null
+        }
+
+        var translation: String? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            if (reader.nextName() == languageCode) {
+                translation = reader.nextStringOrNull()
+            } else {
+                reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return translation
+    }
+
+    private fun readStringList(reader: JsonReader): List<String> {
+        val list = ArrayList<String>()
+        reader.beginArray()
+        while (reader.hasNext()) {
+            reader.nextStringOrNull()?.let { list.add(it) }
+        }
+        reader.endArray()
+        return list
+    }
+
+    private fun readRoutes(reader: JsonReader): Map<String, Route> {
+        val routeMap = HashMap<String, Route>()
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            val key = reader.nextName()
+            try {
+                val route = readRoute(reader)
+
+                // Replacement routes are inconsistent and unnecessary to display
+                if (!route.isReplacement) {
+                    routeMap[route.id] = route
+                }
+            } catch (ex: JSONException) {
+                crashLog("Route parse: failed at key $key:\n$ex")
+            }
+        }
+        reader.endObject()
+
+        return routeMap
+    }
+
+    @Throws(JSONException::class)
+    private fun readRoute(reader: JsonReader): Route {
+        var id: String? = null
+        var shortName: String? = null
+        var longName: String? = null
+        var description: String? = null
+        var type: String? = null
+        var color: String? = null
+        var textColor: String? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                RouteContract.ROUTE_ID -> id = reader.nextStringOrNull()
+                RouteContract.ROUTE_SHORT_NAME -> shortName = reader.nextStringOrNull()
+                RouteContract.ROUTE_LONG_NAME -> longName = reader.nextStringOrNull()
+                // Sometimes the description field is missing form the object
+                RouteContract.ROUTE_DESC -> description = reader.nextStringOrNull()
+                RouteContract.ROUTE_TYPE -> type = reader.nextStringOrNull()
+                RouteContract.ROUTE_COLOR -> color = reader.nextStringOrNull()
+                RouteContract.ROUTE_TEXT_COLOR -> textColor = reader.nextStringOrNull()
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        if (id == null || shortName == null || type == null || color == null || textColor == null) {
+            throw JSONException("Missing required field of route $id")
+        }
+
+        // Keyed by the raw fields, so a known route is found without parsing its colors
+        val key = "$ROUTE_KEY_PREFIX|$id|$shortName|$longName|$description|$type|$color|$textColor"
+        return routeRegistry.getOrPut(key) {
+            Route(
+                id,
+                shortName,
+                longName,
+                description,
+                parseRouteType(type),
+                Color.parseColor("#$color"),
+                Color.parseColor("#$textColor"),
+                false
+            )
+        }
+    }
+
+    private fun parseRouteType(type: String): RouteType {
+        try {
+            return RouteType.valueOf(type)
+        } catch (ex: IllegalArgumentException) {
+            crashLog(
+                "Route parse: failed to parse route type to enum: $type"
+            )
+        }
+
+        return RouteType.OTHER
+    }
+
+    /**
+     * Alerts returned by the API has affected routes' IDs only,
+     * but this method returns a list of affected routes from the parsed routes
+     */
+    private fun getRoutesByIds(routeIds: List<String>, routes: Map<String, Route>): List<Route> {
+        val affectedRoutes = ArrayList<Route>(routeIds.size)
+
+        if (routes.isEmpty()) {
+            return affectedRoutes
+        }
+
+        // Replacement routes are filtered out at the parse stage,
+        // getting a route by the returned routeId might be null, which is ok.
+        routeIds.mapNotNullTo(affectedRoutes) {
+            routes[it]
+        }
+
+        return affectedRoutes
+    }
+}
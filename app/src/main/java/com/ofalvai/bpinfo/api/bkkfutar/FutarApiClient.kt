@@ -16,33 +16,28 @@
 
 package com.ofalvai.bpinfo.api.bkkfutar
 
-import android.annotation.SuppressLint
 import android.content.Context
 import android.content.SharedPreferences
-import android.graphics.Color
 import android.net.Uri
 import com.android.volley.RequestQueue
-import com.android.volley.toolbox.JsonObjectRequest
-import com.google.firebase.crashlytics.FirebaseCrashlytics
 import com.ofalvai.bpinfo.BuildConfig
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.api.AlertApiClient
+import com.ofalvai.bpinfo.api.Cancellable
+import com.ofalvai.bpinfo.api.JsonStreamRequest
+import com.ofalvai.bpinfo.api.ParsedResponseCache
+import com.ofalvai.bpinfo.api.RouteRegistry
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.model.Route
-import com.ofalvai.bpinfo.model.RouteType
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
-import com.ofalvai.bpinfo.util.*
-import org.json.JSONException
-import org.json.JSONObject
+import com.ofalvai.bpinfo.util.LocaleManager
 import org.threeten.bp.Instant
-import org.threeten.bp.ZonedDateTime
 import timber.log.Timber
-import java.util.*
 
 class FutarApiClient(
     private val requestQueue: RequestQueue,
     private val sharedPreferences: SharedPreferences,
-    private val context: Context
+    private val context: Context,
+    private val routeRegistry: RouteRegistry
 ) : AlertApiClient {
 
     companion object {
@@ -54,299 +49,83 @@ class FutarApiClient(
         private const val QUERY_APPVERSION = BuildConfig.VERSION_NAME
 
         private const val QUERY_INCLUDEREFERENCES = "alerts,routes"
-
-        // The website doesn't have a language switch, but the URL has a hidden query parameter:
-        // /alert.php?id=1234&lang=en
-        // This creates a session cookie with the language code, and the website uses this cookie
-        // for language selection.
-        // The only problem: it seems that the cookie has higher priority that the URL
-        // parameter in the language selection, and even though this is a session cookie,
-        // Chrome doesn't delete it immediately after closing the custom tab, but when the last
-        // Chrome process dies.
-        // So it can be really hard to change the website's language AFTER it's been visited with
-        // the app set to a different language.
-        // But it's better than having no language selection at all.
-        private const val LANG_PARAM = "&lang="
     }
 
     /**
      * There's only one call in the API to get both the list and the details about alerts,
      * so we have to store them after the first call.
      */
-    private var alertsToday: List<Alert> = arrayListOf()
-
-    private var alertsFuture: List<Alert> = arrayListOf()
-
-    /**
-     * Map of all parsed routes. This is used to set every alert's affected routes by ID.
-     */
-    private var routes: Map<String, Route> = mutableMapOf()
+    private var alertsById: Map<String, Alert> = emptyMap()
 
     private var languageCode: String? = null
 
-    override fun fetchAlertList(callback: AlertApiClient.AlertListCallback) {
+    private val parsedResponseCache = ParsedResponseCache()
+
+    override fun fetchAlertList(callback: AlertApiClient.AlertListCallback): Cancellable {
         languageCode = LocaleManager.getCurrentLanguageCode(sharedPreferences)
 
-        val uri = buildUri()
+        // In debug mode, all alerts (even past ones) are retrieved
+        val isDebugMode = sharedPreferences.getBoolean(
+            context.getString(R.string.pref_key_debug_mode), false
+        )
+
+        val baseUri = buildBaseUri()
+        val uri = if (isDebugMode) baseUri else appendStartParam(baseUri)
 
         Timber.i("API request: %s", uri.toString())
 
-        val request = JsonObjectRequest(
-            uri.toString(), null,
-            { response ->
-                try {
-                    routes = parseRoutes(response)
-                    alertsToday = parseAlerts(response, AlertListType.Today)
-                    alertsFuture = parseAlerts(response, AlertListType.Future)
-                    callback.onAlertListResponse(alertsToday, alertsFuture)
-                } catch (ex: Exception) {
-                    callback.onError(ex)
-                }
+        // The response is parsed on the network thread, the listener only receives the result
+        val parser = AlertSearchParser(languageCode, isDebugMode, routeRegistry)
+        val request = JsonStreamRequest(
+            uri.toString(),
+            parser::parse,
+            { result ->
+                alertsById = result.alertsById
+                callback.onAlertListResponse(result.alertsToday, result.alertsFuture)
             },
             { error ->
                 callback.onError(error)
             }
         )
+        // The start parameter changes on every request, but the response can still be
+        // revalidated by the API. Alerts that have ended since then are dropped by the parser.
+        // Debug mode requests a different set of alerts.
+        request.stableCacheKey = "$baseUri|$isDebugMode"
+        request.parsedResponseCache = parsedResponseCache
+        request.parsedResultKey = "$baseUri|$languageCode|$isDebugMode"
+        request.onReuse = parser::repartition
 
         requestQueue.add(request)
+        return Cancellable(request::cancel)
     }
 
     override fun fetchAlert(id: String, alertListType: AlertListType,
-                            callback: AlertApiClient.AlertDetailCallback) {
-        if (alertListType == AlertListType.Today) {
-            alertsToday.find { it.id == id }?.let {
-                callback.onAlertResponse(it)
-                return
-            }
-
-            callback.onError(Exception("Alert not found"))
+                            callback: AlertApiClient.AlertDetailCallback): Cancellable {
+        // Alert details are already known from the list response, there's nothing to cancel
+        val alert = alertsById[id]
+        if (alert != null) {
+            callback.onAlertResponse(alert)
         } else {
-            alertsFuture.find { it.id == id }?.let {
-                callback.onAlertResponse(it)
-                return
-            }
-
             callback.onError(Exception("Alert not found"))
         }
+
+        return Cancellable { }
     }
 
-    private fun buildUri(): Uri {
-        val builder = Uri.parse(AlertSearchContract.BASE_URL).buildUpon()
+    private fun buildBaseUri(): Uri {
+        return Uri.parse(AlertSearchContract.BASE_URL).buildUpon()
             .appendEncodedPath(AlertSearchContract.API_ENDPOINT)
             .appendQueryParameter("key", QUERY_API_KEY)
             .appendQueryParameter("version", QUERY_API_VERSION)
             .appendQueryParameter("appVersion", QUERY_APPVERSION)
             .appendQueryParameter("includeReferences", QUERY_INCLUDEREFERENCES)
-
-        // In debug mode, all alerts (even past ones) are retrieved
-        val isDebugMode = sharedPreferences.getBoolean(
-            context.getString(R.string.pref_key_debug_mode), false
-        )
-
-        if (!isDebugMode) {
-            val startTimestamp: String = Instant.now().epochSecond.toString()
-            builder.appendQueryParameter("start", startTimestamp)
-        }
-
-        return builder.build()
-    }
-
-    @Throws(JSONException::class)
-    private fun parseAlerts(response: JSONObject, alertListType: AlertListType): List<Alert> {
-        val alertList = ArrayList<Alert>()
-
-        val dataNode = response.getJSONObject(AlertSearchContract.DATA)
-        val entryNode = dataNode.getJSONObject(AlertSearchContract.DATA_ENTRY)
-        val alertIdsNode = entryNode.getJSONArray(AlertSearchContract.DATA_ENTRY_ALERT_IDS)
-
-        if (alertIdsNode.length() == 0) {
-            return alertList
-        }
-
-        val referencesNode = dataNode.getJSONObject(AlertSearchContract.DATA_REFERENCES)
-        val alertsNode = referencesNode.getJSONObject(AlertSearchContract.DATA_REFERENCES_ALERTS)
-
-        val alerts = alertsNode.toArray()
-
-        for (i in 0 until alerts.length()) {
-            val alertNode = alerts.getJSONObject(i)
-            val alert: Alert
-            try {
-                alert = parseAlert(alertNode)
-
-                if (alert.id == "BKK_alert-4") {
-                    // This alert is a special message warning users to update the official app
-                    continue
-                }
-
-                // Time ranges in the API response are messed up. We need to filter out alerts that are
-                // before/after the time range we want.
-                val alertStartTime: ZonedDateTime = apiTimestampToDateTime(alert.start)
-                if (alertListType == AlertListType.Today && alertStartTime.isBefore(
-                        ZonedDateTime.now()
-                    )) {
-                    alertList.add(alert)
-                } else if (alertListType == AlertListType.Future && alertStartTime.isAfter(
-                        ZonedDateTime.now()
-                    )) {
-                    alertList.add(alert)
-                }
-            } catch (ex: JSONException) {
-                FirebaseCrashlytics.getInstance().log("Alert parse: failed to parse:\n$ex")
-            }
-        }
-
-        return alertList
+            .build()
     }
 
-    @SuppressLint("DefaultLocale")
-    @Throws(JSONException::class)
-    private fun parseAlert(alertNode: JSONObject): Alert {
-
-        val id = alertNode.getString(AlertContract.ALERT_ID)
-        val start = alertNode.getLong(AlertContract.ALERT_START)
-        var end: Long = 0
-
-        if (!alertNode.isNull(AlertContract.ALERT_END)) {
-            // There are alerts with unknown ends, represented by null
-            end = alertNode.getLong(AlertContract.ALERT_END)
-        }
-
-        val timestamp = alertNode.getLong(AlertContract.ALERT_TIMESTAMP)
-
-        val urlNode = alertNode.getJSONObject(AlertContract.ALERT_URL)
-
-        var url: String? = null
-        if (!urlNode.isNull(AlertSearchContract.LANG_SOME)) {
-            url = urlNode.getString(AlertSearchContract.LANG_SOME) + LANG_PARAM + languageCode
-        }
-
-        var header: String? = null
-        val headerNode = alertNode.getJSONObject(AlertContract.ALERT_HEADER)
-        val translationsNode = headerNode.getJSONObject(AlertContract.ALERT_HEADER_TRANSLATIONS)
-        try {
-            // Trying to get the specific language's translation
-            // It might be null or completely missing from the response
-            languageCode?.let {
-                header = translationsNode.getString(it)
-            }
-
-            if (header == null || header == "null") {
-                throw JSONException("header field is null")
-            }
-        } catch (ex: JSONException) {
-            // Falling back to the "someTranslation" field
-            header = headerNode.getString(AlertSearchContract.LANG_SOME)
-            FirebaseCrashlytics.getInstance().log("Alert parse: header translation missing")
-        }
-
-        header = header?.capitalize() ?: ""
-
-        val description: String
-        val descriptionNode = alertNode.getJSONObject(AlertContract.ALERT_DESC)
-        val translationsNode2 = descriptionNode.getJSONObject(AlertContract.ALERT_DESC_TRANSLATIONS)
-        if (!translationsNode2.isNull(languageCode)) {
-            // Trying to get the specific language's translation
-            // It might be null or completely missing from the response
-            description = translationsNode2.getString(languageCode!!)
-        } else {
-            // Falling back to the "someTranslation" field
-            description = descriptionNode.getString(AlertSearchContract.LANG_SOME)
-
-            FirebaseCrashlytics.getInstance().log("Alert parse: description translation missing")
-        }
-
-        val routeIdsNode = alertNode.getJSONArray(AlertContract.ALERT_ROUTE_IDS)
-        val routeIds = routeIdsNode.toStringList()
-        val affectedRoutes = getRoutesByIds(routeIds)
-
-        return Alert(id, start, end, timestamp, url, header, description, affectedRoutes, false)
-    }
-
-    @Throws(JSONException::class)
-    private fun parseRoutes(response: JSONObject): Map<String, Route> {
-        val routeMap = mutableMapOf<String, Route>()
-
-        val dataNode = response.getJSONObject(AlertSearchContract.DATA)
-        val referencesNode = dataNode.getJSONObject(AlertSearchContract.DATA_REFERENCES)
-        val routesNode = referencesNode.getJSONObject(AlertSearchContract.DATA_REFERENCES_ROUTES)
-        val routesArray = routesNode.toArray()
-
-        for (i in 0 until routesArray.length()) {
-            val routeNode = routesArray.getJSONObject(i)
-            val route: Route
-            try {
-                route = parseRoute(routeNode)
-
-                // Replacement routes are inconsistent and unnecessary to display
-                if (!route.isReplacement()) {
-                    routeMap[route.id] = route
-                }
-            } catch (ex: JSONException) {
-                FirebaseCrashlytics.getInstance().log(
-                    "Route parse: failed at index $i:\n$routeNode"
-                )
-            }
-        }
-
-        return routeMap
-    }
-
-    @Throws(JSONException::class)
-    private fun parseRoute(routeNode: JSONObject): Route {
-        val id = routeNode.getString(RouteContract.ROUTE_ID)
-        val shortName = routeNode.getString(RouteContract.ROUTE_SHORT_NAME)
-
-        val longName: String? = try {
-            routeNode.getString(RouteContract.ROUTE_LONG_NAME)
-        } catch (ex: JSONException) {
-            null
-        }
-
-        // Sometimes the description field is missing form the object
-        val description: String? = try {
-            routeNode.getString(RouteContract.ROUTE_DESC)
-        } catch (ex: JSONException) {
-            null
-        }
-
-        val type = parseRouteType(routeNode.getString(RouteContract.ROUTE_TYPE))
-
-        val color = Color.parseColor("#" + routeNode.getString(RouteContract.ROUTE_COLOR))
-        val textColor = Color.parseColor("#" + routeNode.getString(RouteContract.ROUTE_TEXT_COLOR))
-
-        return Route(id, shortName, longName, description, type, color, textColor, false)
-    }
-
-    private fun parseRouteType(type: String): RouteType {
-        try {
-            return RouteType.valueOf(type)
-        } catch (ex: IllegalArgumentException) {
-            FirebaseCrashlytics.getInstance().log(
-                    "Route parse: failed to parse route type to enum: $type"
-            )
-        }
-
-        return RouteType.OTHER
-    }
-
-    /**
-     * Alerts returned by the API has affected routes' IDs only,
-     * but this method returns a list of affected routes from the parsed routes
-     */
-    private fun getRoutesByIds(routeIds: List<String>): List<Route> {
-        val affectedRoutes = ArrayList<Route>()
-
-        if (routes.isEmpty()) {
-            return affectedRoutes
-        }
-
-        // Replacement routes are filtered out at the parse stage,
-        // getting a route by the returned routeId might be null, which is ok.
-        routeIds.mapNotNullTo(affectedRoutes) {
-            routes[it]
-        }
-
-        return affectedRoutes
+    private fun appendStartParam(baseUri: Uri): Uri {
+        val startTimestamp: String = Instant.now().epochSecond.toString()
+        return baseUri.buildUpon()
+            .appendQueryParameter("start", startTimestamp)
+            .build()
     }
 }
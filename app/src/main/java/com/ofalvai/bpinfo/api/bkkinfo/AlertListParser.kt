@@ -0,0 +1,276 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.api.bkkinfo
+
+import android.util.JsonReader
+import android.util.JsonToken
+import com.google.firebase.crashlytics.FirebaseCrashlytics
+import com.ofalvai.bpinfo.api.RouteRegistry
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.util.nextLongOrNull
+import com.ofalvai.bpinfo.util.nextStringOrNull
+import org.json.JSONException
+import org.threeten.bp.Instant
+import java.io.IOException
+import java.util.*
+
+/**
+ * Streaming parser of the alert list API response (json.php?lista). Alerts are sorted into the
+ * today and future lists as soon as they are read, without building the JSON tree of the whole
+ * response.
+ * @param isDebugMode In debug mode, alerts that have already ended are kept in the today list
+ * @param routeRegistry Affected routes are looked up here, so their colors are matched only once
+ * @param crashLog Parse problems are logged here, instead of Crashlytics in tests
+ */
+internal class AlertListParser(
+    private val isDebugMode: Boolean,
+    private val routeRegistry: RouteRegistry,
+    private val crashLog: (String) -> Unit = { FirebaseCrashlytics.getInstance().log(it) }
+) {
+
+    companion object {
+        private const val KEY_ACTIVE = "active"
+        private const val KEY_SOON = "soon"
+        private const val KEY_FUTURE = "future"
+
+        private const val ROUTE_KEY_PREFIX = "bkkinfo-list"
+    }
+
+    class Result(
+        val alertsToday: List<Alert>,
+        val alertsFuture: List<Alert>,
+
+        /**
+         * Alerts of the "active" list of the response, for partitioning them again at a later time
+         */
+        val activeAlerts: List<Alert>,
+
+        /**
+         * Alerts of the "soon" and "future" lists of the response
+         */
+        val upcomingAlerts: List<Alert>
+    )
+
+    @Throws(IOException::class, JSONException::class)
+    fun parse(reader: JsonReader): Result {
+        val alertsToday = ArrayList<Alert>()
+        val alertsFuture = ArrayList<Alert>()
+        val activeAlerts = ArrayList<Alert>()
+        val upcomingAlerts = ArrayList<Alert>()
+        val now: Instant = Instant.now()
+        val requiredKeys = mutableSetOf(KEY_ACTIVE, KEY_SOON, KEY_FUTURE)
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (val key = reader.nextName()) {
+                KEY_ACTIVE -> {
+                    requiredKeys.remove(key)
+                    readAlerts(reader) { alert ->
+                        activeAlerts.add(alert)
+                        addActiveAlert(alert, now, alertsToday, alertsFuture)
+                    }
+                }
+                // Future alerts are in two groups: near-future and far-future
+                KEY_SOON, KEY_FUTURE -> {
+                    requiredKeys.remove(key)
+                    readAlerts(reader) { alert ->
+                        upcomingAlerts.add(alert)
+                        alertsFuture.add(alert)
+                    }
+                }
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        if (requiredKeys.isNotEmpty()) {
+            throw JSONException("No value for $requiredKeys")
+        }
+
+        return Result(alertsToday, alertsFuture, activeAlerts, upcomingAlerts)
+    }
+
+    /**
+     * Splits the active alerts of a previous result again, compared to the current time.
+     * Used when the result of an unchanged response is reused instead of parsing it again.
+     */
+    fun repartition(result: Result): Result {
+        val alertsToday = ArrayList<Alert>()
+        val alertsFuture = ArrayList<Alert>()
+        val now: Instant = Instant.now()
+
+        for (alert in result.activeAlerts) {
+            addActiveAlert(alert, now, alertsToday, alertsFuture)
+        }
+        alertsFuture.addAll(result.upcomingAlerts)
+
+        return Result(alertsToday, alertsFuture, result.activeAlerts, result.upcomingAlerts)
+    }
+
+    private fun addActiveAlert(
+        alert: Alert,
+        now: Instant,
+        alertsToday: MutableList<Alert>,
+        alertsFuture: MutableList<Alert>
+    ) {
+        val startTime = Instant.ofEpochSecond(alert.start)
+        val endTime = Instant.ofEpochSecond(alert.end)
+
+        // Some alerts are still listed a few minutes after they ended, we need to
+        // hide them, but still show them if debug mode is enabled
+        if (endTime.isAfter(now) || alert.end == 0L || isDebugMode) {
+            // Alerts scheduled for the current day (and not yet started) appear
+            // in the current alerts list. They belong to the future alerts list.
+            if (startTime.isAfter(now)) {
+                alertsFuture.add(alert)
+            } else {
+                alertsToday.add(alert)
+            }
+        }
+    }
+
+    private fun readAlerts(reader: JsonReader, onAlert: (Alert) -> Unit) {
+        reader.beginArray()
+        while (reader.hasNext()) {
+            try {
+                onAlert(readAlert(reader))
+            } catch (ex: JSONException) {
+                crashLog("Alert parse: failed to parse:\n$ex")
+            }
+        }
+        reader.endArray()
+    }
+
+    /**
+     * Parses alert details found in the alert list API response
+     * This structure is different than the alert detail API response.
+     * The whole alert object is read before validating it, so that the reader is positioned at
+     * the next alert even if a required field is missing.
+     */
+    @Throws(JSONException::class)
+    private fun readAlert(reader: JsonReader): Alert {
+        var id: String? = null
+        var start: Long? = null
+        var end: Long? = null
+        var timestamp: Long? = null
+        var header: String? = null
+        var affectedRoutes: List<Route>? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                "id" -> id = reader.nextStringOrNull()
+                "kezd" -> start = readEpoch(reader)
+                "vege" -> end = readEpoch(reader)
+                "modositva" -> timestamp = readEpoch(reader)
+                "elnevezes" -> header = reader.nextStringOrNull()
+                "jaratokByFajta" -> affectedRoutes = readAffectedRoutes(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        if (id == null || timestamp == null || header == null || affectedRoutes == null) {
+            throw JSONException("Missing required field of alert $id")
+        }
+
+        return Alert(
+            id,
+            start ?: 0,
+            end ?: 0,
+            timestamp,
+            BkkInfoClient.getUrl(id),
+            header.capitalize(Locale.getDefault()),
+            null,
+            affectedRoutes,
+            true
+        )
+    }
+
+    /**
+     * Reads the "epoch" field of a date object, which might be null
+     */
+    private fun readEpoch(reader: JsonReader): Long? {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull()
+            return null
+        }
+
+        var epoch: Long? = null
+        reader.beginObject()
+        while (reader.hasNext()) {
+            if (reader.nextName() == "epoch") {
+                epoch = reader.nextLongOrNull()
+            } else {
+                reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        return epoch
+    }
+
+    /**
+     * Parses affected routes found in the alert list API response
+     * This structure is different than the alert detail API response
+     */
+    private fun readAffectedRoutes(reader: JsonReader): List<Route> {
+        // The API lists multiple affected routes grouped by their vehicle type (bus, tram, etc.)
+        val routes = ArrayList<Route>()
+
+        reader.beginArray()
+        while (reader.hasNext()) {
+            var typeString: String? = null
+            var shortNames: List<String> = emptyList()
+
+            reader.beginObject()
+            while (reader.hasNext()) {
+                when (reader.nextName()) {
+                    "type" -> typeString = reader.nextStringOrNull()
+                    "jaratok" -> shortNames = readShortNames(reader)
+                    else -> reader.skipValue()
+                }
+            }
+            reader.endObject()
+
+            val type = BkkInfoClient.parseRouteType(typeString ?: "")
+            for (shortName in shortNames) {
+                val route = routeRegistry.getOrPut("$ROUTE_KEY_PREFIX|$type|$shortName") {
+                    val colors = BkkInfoClient.parseRouteColors(type, shortName)
+
+                    // There's no ID returned by the API, using shortName instead
+                    Route(shortName, shortName, null, null, type, colors[0], colors[1], false)
+                }
+                routes.add(route)
+            }
+        }
+        reader.endArray()
+
+        return routes
+    }
+
+    private fun readShortNames(reader: JsonReader): List<String> {
+        val shortNames = ArrayList<String>()
+        reader.beginArray()
+        while (reader.hasNext()) {
+            reader.nextStringOrNull()?.let { shortNames.add(it.trim()) }
+        }
+        reader.endArray()
+        return shortNames
+    }
+}
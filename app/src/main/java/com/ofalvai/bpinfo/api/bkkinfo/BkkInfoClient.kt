@@ -23,30 +23,30 @@ import android.net.Uri
 import androidx.annotation.ColorInt
 import com.android.volley.DefaultRetryPolicy
 import com.android.volley.RequestQueue
-import com.android.volley.toolbox.JsonObjectRequest
-import com.google.firebase.crashlytics.FirebaseCrashlytics
 import com.google.firebase.perf.FirebasePerformance
-import com.google.firebase.perf.metrics.Trace
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.api.AlertApiClient
+import com.ofalvai.bpinfo.api.Cancellable
+import com.ofalvai.bpinfo.api.JsonObjectParsedRequest
+import com.ofalvai.bpinfo.api.JsonStreamRequest
+import com.ofalvai.bpinfo.api.ParsedResponseCache
+import com.ofalvai.bpinfo.api.RouteRegistry
 import com.ofalvai.bpinfo.model.Alert
 import com.ofalvai.bpinfo.model.Route
 import com.ofalvai.bpinfo.model.RouteType
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
 import com.ofalvai.bpinfo.util.LocaleManager
-import com.ofalvai.bpinfo.util.apiTimestampToDateTime
 import com.ofalvai.bpinfo.util.toArray
-import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
-import org.threeten.bp.ZonedDateTime
 import timber.log.Timber
 import java.util.*
 
 class BkkInfoClient(
     private val requestQueue: RequestQueue,
     private val sharedPreferences: SharedPreferences,
-    private val context: Context
+    private val context: Context,
+    private val routeRegistry: RouteRegistry
 ) : AlertApiClient {
 
     companion object {
@@ -71,6 +71,13 @@ class BkkInfoClient(
 
         private const val DETAIL_WEBVIEW_PARAM_ID = "id"
 
+        private const val DETAIL_ROUTE_KEY_PREFIX = "bkkinfo-detail"
+
+        /**
+         * Night bus numbers start from 900, and might contain one extra letter after the 3 digits
+         */
+        private val NIGHT_BUS_SHORT_NAME_PATTERN = "^9[0-9][0-9][A-Z]?$".toRegex()
+
         /**
          * Returns a retry policy with increased timeout
          */
@@ -80,46 +87,222 @@ class BkkInfoClient(
             DefaultRetryPolicy.DEFAULT_MAX_RETRIES,
             DefaultRetryPolicy.DEFAULT_BACKOFF_MULT
         )
+
+        internal fun getUrl(alertId: String): String {
+            return "$DETAIL_WEBVIEW_BASE_URL?$DETAIL_WEBVIEW_PARAM_ID=$alertId"
+        }
+
+        internal fun parseRouteType(routeTypeString: String): RouteType {
+            return when (routeTypeString) {
+                "busz" -> RouteType.BUS
+                "ejszakai" ->
+                    // Night buses are parsed as buses. Their colors are corrected in
+                    // parseRouteColors()
+                    RouteType.BUS
+                "hajo" -> RouteType.FERRY
+                "villamos" -> RouteType.TRAM
+                "trolibusz" -> RouteType.TROLLEYBUS
+                "metro" -> RouteType.SUBWAY
+                "libego" -> RouteType.CHAIRLIFT
+                "hev" -> RouteType.RAIL
+                "siklo" -> RouteType.FUNICULAR
+                else -> RouteType.OTHER
+            }
+        }
+
+        /**
+         * Returns the background and foreground colors of the route, because the alert list API
+         * doesn't return them in the response.
+         * Note that the alert detail response contains color values, so the alert detail parsing
+         * doesn't need to call this.
+         * @param type Parsed type of the route. Most of the time this is enough to match the colors
+         * @param shortName Parsed short name (line number) of the route. This is needed because
+         * some route types have different colors for each route (eg. subway, ferry).
+         * @return  Array of color-ints: background, foreground
+         */
+        @ColorInt
+        internal fun parseRouteColors(type: RouteType, shortName: String): IntArray {
+            // Color values based on this list of routes:
+            // http://online.winmenetrend.hu/budapest/latest/lines
+
+            val defaultBackground = "EEEEEE"
+            val defaultText = "BBBBBB"
+
+            val background: String
+            val text: String
+            when (type) {
+                RouteType.BUS -> when {
+                    NIGHT_BUS_SHORT_NAME_PATTERN.matches(shortName) -> {
+                        // Night bus
+                        background = "1E1E1E"
+                        text = "FFFFFF"
+                    }
+                    shortName == "I" -> {
+                        // Nostalgia bus
+                        background = "FFA417"
+                        text = "FFFFFF"
+                    }
+                    else -> {
+                        // Regular bus
+                        background = "009FE3"
+                        text = "FFFFFF"
+                    }
+                }
+                RouteType.FERRY -> if (shortName == "D12") {
+                    background = "9A1915"
+                    text = "FFFFFF"
+                } else {
+                    background = "E50475"
+                    text = "FFFFFF"
+                }
+                RouteType.RAIL -> when (shortName) {
+                    "H5" -> {
+                        background = "821066"
+                        text = "FFFFFF"
+                    }
+                    "H6" -> {
+                        background = "884200"
+                        text = "FFFFFF"
+                    }
+                    "H7" -> {
+                        background = "EE7203"
+                        text = "FFFFFF"
+                    }
+                    "H8" -> {
+                        background = "FF6677"
+                        text = "FFFFFF"
+                    }
+                    "H9" -> {
+                        background = "FF6677"
+                        text = "FFFFFF"
+                    }
+                    else -> {
+                        background = defaultBackground
+                        text = defaultText
+                    }
+                }
+                RouteType.TRAM -> {
+                    background = "FFD800"
+                    text = "000000"
+                }
+                RouteType.TROLLEYBUS -> {
+                    background = "FF1609"
+                    text = "FFFFFF"
+                }
+                RouteType.SUBWAY -> when (shortName) {
+                    "M1" -> {
+                        background = "FFD800"
+                        text = "000000"
+                    }
+                    "M2" -> {
+                        background = "FF1609"
+                        text = "FFFFFF"
+                    }
+                    "M3" -> {
+                        background = "005CA5"
+                        text = "FFFFFF"
+                    }
+                    "M4" -> {
+                        background = "19A949"
+                        text = "FFFFFF"
+                    }
+                    else -> {
+                        background = defaultBackground
+                        text = defaultText
+                    }
+                }
+                RouteType.CHAIRLIFT -> {
+                    background = "009155"
+                    text = "000000"
+                }
+                RouteType.FUNICULAR -> {
+                    background = "884200"
+                    text = "000000"
+                }
+                RouteType.OTHER -> {
+                    background = defaultBackground
+                    text = defaultText
+                }
+            }
+
+            var backgroundColor: Int
+            var textColor: Int
+            try {
+                backgroundColor = Color.parseColor("#$background")
+                textColor = Color.parseColor("#$text")
+            } catch (ex: IllegalArgumentException) {
+                backgroundColor = Color.parseColor("#$defaultBackground")
+                textColor = Color.parseColor("#$defaultText")
+            }
+
+            return intArrayOf(backgroundColor, textColor)
+        }
     }
 
-    private var alertDetailTrace: Trace? = null
+    private val parsedResponseCache = ParsedResponseCache()
 
     private val languageCode: String =
         LocaleManager.getCurrentLanguageCode(sharedPreferences)
 
-    override fun fetchAlertList(callback: AlertApiClient.AlertListCallback) {
+    override fun fetchAlertList(callback: AlertApiClient.AlertListCallback): Cancellable {
         val url = buildAlertListUrl()
 
         Timber.i("API request: %s", url.toString())
 
-        val request = JsonObjectRequest(
+        val isDebugMode = sharedPreferences.getBoolean(
+            context.getString(R.string.pref_key_debug_mode), false
+        )
+
+        // The response is parsed on the network thread, the listener only receives the result
+        val parser = AlertListParser(isDebugMode, routeRegistry)
+        val request = JsonStreamRequest(
             url.toString(),
-            null,
-            { response -> onAlertListResponse(response, callback) },
+            parser::parse,
+            { result -> callback.onAlertListResponse(result.alertsToday, result.alertsFuture) },
             { error ->
                 callback.onError(error)
             }
         )
         request.retryPolicy = retryPolicy
+        request.parsedResponseCache = parsedResponseCache
+        request.onReuse = parser::repartition
 
         requestQueue.add(request)
+        return Cancellable(request::cancel)
     }
 
     override fun fetchAlert(id: String, alertListType: AlertListType,
-                            callback: AlertApiClient.AlertDetailCallback) {
+                            callback: AlertApiClient.AlertDetailCallback): Cancellable {
         val url = buildAlertDetailUrl(id)
 
         Timber.i("API request: %s", url.toString())
 
-        val request = JsonObjectRequest(
-            url.toString(), null,
-            { response -> onAlertDetailResponse(callback, response) },
-            { error -> callback.onError(error) }
+        // Details of several alerts can be fetched at the same time, each has its own trace
+        val trace = FirebasePerformance.getInstance().newTrace("network_alert_detail_bkk")
+
+        // The response is parsed on the network thread, the listener only receives the result
+        val request = JsonObjectParsedRequest(
+            url.toString(),
+            this::parseAlertDetail,
+            { alert ->
+                trace.stop()
+                callback.onAlertResponse(alert)
+            },
+            { error ->
+                trace.stop()
+                callback.onError(error)
+            }
         )
         request.retryPolicy = retryPolicy
+        request.parsedResponseCache = parsedResponseCache
 
+        trace.start()
         requestQueue.add(request)
-        createAndStartTrace("network_alert_detail_bkk")
+
+        return Cancellable {
+            request.cancel()
+            trace.stop()
+        }
     }
 
     private fun buildAlertListUrl() = Uri.parse(API_BASE_URL)
@@ -135,124 +318,10 @@ class BkkInfoClient(
             .appendQueryParameter(PARAM_ALERT_DETAIL, alertId)
             .build()
 
-    private fun onAlertListResponse(response: JSONObject, callback: AlertApiClient.AlertListCallback) {
-        try {
-            val alertsToday = parseTodayAlerts(response).toMutableList()
-            val alertsFuture = parseFutureAlerts(response)
-            fixFutureAlertsInTodayList(alertsToday, alertsFuture)
-
-            callback.onAlertListResponse(alertsToday, alertsFuture)
-        } catch (ex: Exception) {
-            callback.onError(ex)
-        }
-    }
-
-    private fun onAlertDetailResponse(
-            callback: AlertApiClient.AlertDetailCallback,
-            response: JSONObject
-    ) {
-        alertDetailTrace?.stop()
-        try {
-            val alert = parseAlertDetail(response)
-            callback.onAlertResponse(alert)
-        } catch (ex: Exception) {
-            callback.onError(ex)
-        }
-    }
-
-    @Throws(JSONException::class)
-    private fun parseTodayAlerts(response: JSONObject): List<Alert> {
-        val alerts = ArrayList<Alert>()
-
-        val isDebugMode = sharedPreferences.getBoolean(
-            context.getString(R.string.pref_key_debug_mode), false
-        )
-
-        val activeAlertsList = response.getJSONArray("active")
-        for (i in 0 until activeAlertsList.length()) {
-            try {
-                val alertNode = activeAlertsList.getJSONObject(i)
-                val alert = parseAlert(alertNode)
-
-                // Some alerts are still listed a few minutes after they ended, we need to hide them,
-                // but still show them if debug mode is enabled
-                val alertEndTime: ZonedDateTime = apiTimestampToDateTime(alert.end)
-                if (alertEndTime.isAfter(ZonedDateTime.now()) || alert.end == 0L || isDebugMode) {
-                    alerts.add(alert)
-                }
-            } catch (ex: JSONException) {
-                FirebaseCrashlytics.getInstance().log("Alert parse: failed to parse:\n$ex")
-            }
-        }
-
-        return alerts
-    }
-
-    @Throws(JSONException::class)
-    private fun parseFutureAlerts(response: JSONObject): MutableList<Alert> {
-        val alerts = ArrayList<Alert>()
-
-        // Future alerts are in two groups: near-future and far-future
-        val soonAlertList = response.getJSONArray("soon")
-        for (i in 0 until soonAlertList.length()) {
-            try {
-                val alertNode = soonAlertList.getJSONObject(i)
-                alerts.add(parseAlert(alertNode))
-            } catch (ex: JSONException) {
-                FirebaseCrashlytics.getInstance().log("Alert parse: failed to parse:\n$ex")
-            }
-        }
-
-        val futureAlertList = response.getJSONArray("future")
-        for (i in 0 until futureAlertList.length()) {
-            try {
-                val alertNode = futureAlertList.getJSONObject(i)
-                alerts.add(parseAlert(alertNode))
-            } catch (ex: JSONException) {
-                FirebaseCrashlytics.getInstance().log("Alert parse: failed to parse:\n$ex")
-            }
-        }
-
-        return alerts
-    }
-
-    /**
-     * Parses alert details found in the alert list API response
-     * This structure is different than the alert detail API response
-     */
-    @Throws(JSONException::class)
-    private fun parseAlert(alertNode: JSONObject): Alert {
-        val id = alertNode.getString("id")
-
-        var start: Long = 0
-        if (!alertNode.isNull("kezd")) {
-            val beginNode = alertNode.getJSONObject("kezd")
-            start = beginNode.getLong("epoch")
-        }
-
-        var end: Long = 0
-        if (!alertNode.isNull("vege")) {
-            val endNode = alertNode.getJSONObject("vege")
-            end = endNode.getLong("epoch")
-        }
-
-        val timestamp: Long
-        val modifiedNode = alertNode.getJSONObject("modositva")
-        timestamp = modifiedNode.getLong("epoch")
-
-        val url = getUrl(id)
-
-        val header = alertNode.getString("elnevezes").capitalize(Locale.getDefault())
-
-        val routesArray = alertNode.getJSONArray("jaratokByFajta")
-        val affectedRoutes = parseAffectedRoutes(routesArray)
-
-        return Alert(id, start, end, timestamp, url, header, null, affectedRoutes, true)
-    }
-
     /**
      * Parses alert details found in the alert detail API response
      * This structure is different than the alert list API response
+     * Called on the network thread by the request
      */
     @Throws(JSONException::class)
     private fun parseAlertDetail(response: JSONObject): Alert {
@@ -309,43 +378,6 @@ class BkkInfoClient(
         return Alert(id, start, end, timestamp, url, header, description, affectedRoutes, false)
     }
 
-    private fun getUrl(alertId: String): String {
-        return "$DETAIL_WEBVIEW_BASE_URL?$DETAIL_WEBVIEW_PARAM_ID=$alertId"
-    }
-
-    /**
-     * Parses affected routes found in the alert list API response
-     * This structure is different than the alert detail API response
-     */
-    @Throws(JSONException::class)
-    private fun parseAffectedRoutes(routesArray: JSONArray): List<Route> {
-        // The API lists multiple affected routes grouped by their vehicle type (bus, tram, etc.)
-        val routes = ArrayList<Route>()
-        for (i in 0 until routesArray.length()) {
-            val routeNode = routesArray.getJSONObject(i)
-            val typeString = routeNode.getString("type")
-            val type = parseRouteType(typeString)
-
-            val concreteRoutes = routeNode.getJSONArray("jaratok")
-            for (j in 0 until concreteRoutes.length()) {
-                val shortName = concreteRoutes.getString(j).trim()
-                val colors = parseRouteColors(type, shortName)
-
-                // There's no ID returned by the API, using shortName instead
-                val route = Route(
-                    shortName,
-                    shortName, null, null,
-                    type,
-                    colors[0],
-                    colors[1],
-                    false
-                )
-                routes.add(route)
-            }
-        }
-        return routes
-    }
-
     /**
      * Parses affected routes found in the alert detail API response
      * This structure is different than the alert list API response
@@ -367,20 +399,24 @@ class BkkInfoClient(
             val id = routeNode.getString("forte")
             val shortName = routeNode.getString("szam")
             val description = routeNode.getString("utvonal")
-            val routeType = parseRouteType(routeNode.getString("tipus"))
-            val color = Color.parseColor("#" + routeNode.getString("szin"))
-            val textColor = Color.parseColor("#" + routeNode.getString("betu"))
-
-            val route = Route(
-                id,
-                shortName,
-                null,
-                description,
-                routeType,
-                color,
-                textColor,
-                false
-            )
+            val type = routeNode.getString("tipus")
+            val color = routeNode.getString("szin")
+            val textColor = routeNode.getString("betu")
+
+            // Colors are only parsed for routes not yet in the registry
+            val key = "$DETAIL_ROUTE_KEY_PREFIX|$id|$shortName|$description|$type|$color|$textColor"
+            val route = routeRegistry.getOrPut(key) {
+                Route(
+                    id,
+                    shortName,
+                    null,
+                    description,
+                    parseRouteType(type),
+                    Color.parseColor("#$color"),
+                    Color.parseColor("#$textColor"),
+                    false
+                )
+            }
             routes.add(route)
         }
 
@@ -388,175 +424,4 @@ class BkkInfoClient(
 
         return routes
     }
-
-    private fun parseRouteType(routeTypeString: String): RouteType {
-        return when (routeTypeString) {
-            "busz" -> RouteType.BUS
-            "ejszakai" ->
-                // Night buses are parsed as buses. Their colors are corrected in parseRouteColors()
-                RouteType.BUS
-            "hajo" -> RouteType.FERRY
-            "villamos" -> RouteType.TRAM
-            "trolibusz" -> RouteType.TROLLEYBUS
-            "metro" -> RouteType.SUBWAY
-            "libego" -> RouteType.CHAIRLIFT
-            "hev" -> RouteType.RAIL
-            "siklo" -> RouteType.FUNICULAR
-            else -> RouteType.OTHER
-        }
-    }
-
-    /**
-     * Returns the background and foreground colors of the route, because the alert list API
-     * doesn't return them in the response.
-     * Note that the alert detail response contains color values, so the alert detail parsing
-     * doesn't need to call this.
-     * @param type Parsed type of the route. Most of the time this is enough to match the colors
-     * @param shortName Parsed short name (line number) of the route. This is needed because some
-     * route types have different colors for each route (eg. subway, ferry).
-     * @return  Array of color-ints: background, foreground
-     */
-    @ColorInt
-    private fun parseRouteColors(type: RouteType, shortName: String): IntArray {
-        // Color values based on this list of routes:
-        // http://online.winmenetrend.hu/budapest/latest/lines
-
-        val defaultBackground = "EEEEEE"
-        val defaultText = "BBBBBB"
-
-        val background: String
-        val text: String
-        when (type) {
-            RouteType.BUS -> when {
-                shortName.matches("^9[0-9][0-9][A-Z]?$".toRegex()) -> {
-                    // Night bus numbers start from 900, and might contain one extra letter after
-                    // the 3 digits.
-                    background = "1E1E1E"
-                    text = "FFFFFF"
-                }
-                shortName == "I" -> {
-                    // Nostalgia bus
-                    background = "FFA417"
-                    text = "FFFFFF"
-                }
-                else -> {
-                    // Regular bus
-                    background = "009FE3"
-                    text = "FFFFFF"
-                }
-            }
-            RouteType.FERRY -> if (shortName == "D12") {
-                background = "9A1915"
-                text = "FFFFFF"
-            } else {
-                background = "E50475"
-                text = "FFFFFF"
-            }
-            RouteType.RAIL -> when (shortName) {
-                "H5" -> {
-                    background = "821066"
-                    text = "FFFFFF"
-                }
-                "H6" -> {
-                    background = "884200"
-                    text = "FFFFFF"
-                }
-                "H7" -> {
-                    background = "EE7203"
-                    text = "FFFFFF"
-                }
-                "H8" -> {
-                    background = "FF6677"
-                    text = "FFFFFF"
-                }
-                "H9" -> {
-                    background = "FF6677"
-                    text = "FFFFFF"
-                }
-                else -> {
-                    background = defaultBackground
-                    text = defaultText
-                }
-            }
-            RouteType.TRAM -> {
-                background = "FFD800"
-                text = "000000"
-            }
-            RouteType.TROLLEYBUS -> {
-                background = "FF1609"
-                text = "FFFFFF"
-            }
-            RouteType.SUBWAY -> when (shortName) {
-                "M1" -> {
-                    background = "FFD800"
-                    text = "000000"
-                }
-                "M2" -> {
-                    background = "FF1609"
-                    text = "FFFFFF"
-                }
-                "M3" -> {
-                    background = "005CA5"
-                    text = "FFFFFF"
-                }
-                "M4" -> {
-                    background = "19A949"
-                    text = "FFFFFF"
-                }
-                else -> {
-                    background = defaultBackground
-                    text = defaultText
-                }
-            }
-            RouteType.CHAIRLIFT -> {
-                background = "009155"
-                text = "000000"
-            }
-            RouteType.FUNICULAR -> {
-                background = "884200"
-                text = "000000"
-            }
-            RouteType.OTHER -> {
-                background = defaultBackground
-                text = defaultText
-            }
-        }
-
-        var backgroundColor: Int
-        var textColor: Int
-        try {
-            backgroundColor = Color.parseColor("#$background")
-            textColor = Color.parseColor("#$text")
-        } catch (ex: IllegalArgumentException) {
-            backgroundColor = Color.parseColor("#$defaultBackground")
-            textColor = Color.parseColor("#$defaultText")
-        }
-
-        return intArrayOf(backgroundColor, textColor)
-    }
-
-    private fun createAndStartTrace(name: String) {
-        alertDetailTrace = FirebasePerformance.getInstance().newTrace(name)
-        alertDetailTrace?.start()
-    }
-
-    /**
-     * Alerts scheduled for the current day (and not yet started) appear in the current alerts list.
-     * We need to find them and move to the future alerts list
-     */
-    private fun fixFutureAlertsInTodayList(
-        alertsToday: MutableList<Alert>,
-        alertsFuture: MutableList<Alert>
-    ) {
-        // Avoiding ConcurrentModificationException when removing from alertsToday
-        val todayIterator = alertsToday.listIterator()
-        while (todayIterator.hasNext()) {
-            val alert = todayIterator.next()
-            val startTime: ZonedDateTime = apiTimestampToDateTime(alert.start)
-            if (startTime.isAfter(ZonedDateTime.now())) {
-                alertsFuture.add(alert)
-                todayIterator.remove()
-            }
-        }
-    }
 }
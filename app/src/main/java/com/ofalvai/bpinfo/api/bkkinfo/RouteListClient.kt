@@ -18,14 +18,19 @@ package com.ofalvai.bpinfo.api.bkkinfo
 
 import android.graphics.Color
 import com.android.volley.RequestQueue
-import com.android.volley.toolbox.JsonObjectRequest
 import com.ofalvai.bpinfo.Config
+import com.ofalvai.bpinfo.api.JsonObjectParsedRequest
+import com.ofalvai.bpinfo.api.ParsedResponseCache
+import com.ofalvai.bpinfo.api.RouteRegistry
 import com.ofalvai.bpinfo.model.Route
 import com.ofalvai.bpinfo.model.RouteType
 import org.json.JSONException
 import org.json.JSONObject
 
-class RouteListClient(private val requestQueue: RequestQueue) {
+class RouteListClient(
+    private val requestQueue: RequestQueue,
+    private val routeRegistry: RouteRegistry
+) {
 
     interface RouteListListener {
 
@@ -63,28 +68,30 @@ class RouteListClient(private val requestQueue: RequestQueue) {
          * We don't need these routes.
          */
         const val VALUE_DISCONTINUED = "megszűnt"
+
+        private const val ROUTE_KEY_PREFIX = "bkkinfo-routes"
     }
 
+    private val parsedResponseCache = ParsedResponseCache()
+
     fun fetchRouteList(listener: RouteListListener) {
-        val request = JsonObjectRequest(
+        // The response is parsed on the network thread, the listener only receives the result
+        val request = JsonObjectParsedRequest(
                 URL,
-                null,
+                this::parseRouteList,
                 {
-                    try {
-                        val routeList = parseRouteList(it)
-                        listener.onRouteListResponse(routeList)
-                    } catch (ex: JSONException) {
-                        listener.onRouteListError(ex)
-                    }
+                    listener.onRouteListResponse(it)
                 },
                 {
                     listener.onRouteListError(it)
                 }
         )
+        request.parsedResponseCache = parsedResponseCache
 
         requestQueue.add(request)
     }
 
+    @Throws(JSONException::class)
     private fun parseRouteList(routeListJson: JSONObject?): List<Route> {
         val routeList = mutableListOf<Route>()
 
@@ -92,8 +99,7 @@ class RouteListClient(private val requestQueue: RequestQueue) {
 
         routeListJson.keys().forEach {
             val routeJson = routeListJson.getJSONObject(it)
-            val route = parseRoute(it, routeJson)
-            if (!route.discontinued) {
+            parseRoute(it, routeJson)?.let { route ->
                 routeList.add(route)
             }
         }
@@ -101,24 +107,32 @@ class RouteListClient(private val requestQueue: RequestQueue) {
         return routeList
     }
 
-    private fun parseRoute(key: String, routeJson: JSONObject?): Route {
+    /**
+     * @return The route from [RouteRegistry], or null if the route is discontinued
+     */
+    private fun parseRoute(key: String, routeJson: JSONObject?): Route? {
         val details = routeJson?.getJSONObject(KEY_DETAILS)
+        if (details?.getString(KEY_KEY) == VALUE_DISCONTINUED) return null
 
-        val backgroundColor = details?.getString(KEY_COLOR_BG) ?: DEFAULT_COLOR_BG
+        val id = details?.getString(KEY_ID) ?: ROUTE_ID_UNKNOWN
+        val description = details?.getString(KEY_DESC)
+        val type = details?.getString(KEY_TYPE)
+        val color = details?.getString(KEY_COLOR_BG) ?: DEFAULT_COLOR_BG
         val textColor = details?.getString(KEY_COLOR_TEXT) ?: DEFAULT_COLOR_TEXT
-        val type = parseRouteType(details?.getString(KEY_TYPE), key.trim())
-        val discontinued = details?.getString(KEY_KEY).equals(VALUE_DISCONTINUED)
-
-        return Route(
-                id = details?.getString(KEY_ID) ?: ROUTE_ID_UNKNOWN,
-                shortName = key.trim(),
-                longName = null,
-                description = details?.getString(KEY_DESC)?.replace("&nbsp;", ""),
-                type = type,
-                color = Color.parseColor("#$backgroundColor"),
-                textColor = Color.parseColor("#$textColor"),
-                discontinued = discontinued
-        )
+
+        val registryKey = "$ROUTE_KEY_PREFIX|$key|$id|$description|$type|$color|$textColor"
+        return routeRegistry.getOrPut(registryKey) {
+            Route(
+                    id = id,
+                    shortName = key.trim(),
+                    longName = null,
+                    description = description?.replace("&nbsp;", ""),
+                    type = parseRouteType(type, key.trim()),
+                    color = Color.parseColor("#$color"),
+                    textColor = Color.parseColor("#$textColor"),
+                    discontinued = false
+            )
+        }
     }
 
     private fun parseRouteType(typeString: String?, shortName: String?): RouteType {
@@ -21,10 +21,12 @@ import android.content.SharedPreferences
 import com.android.volley.RequestQueue
 import com.android.volley.Response
 import com.android.volley.VolleyError
-import com.android.volley.toolbox.JsonArrayRequest
 import com.ofalvai.bpinfo.Config
 import com.ofalvai.bpinfo.R
+import com.ofalvai.bpinfo.api.JsonArrayParsedRequest
+import com.ofalvai.bpinfo.api.ParsedResponseCache
 import org.json.JSONArray
+import org.json.JSONException
 import timber.log.Timber
 
 /**
@@ -42,6 +44,8 @@ class NoticeClient(
             context.getString(R.string.pref_key_debug_mode), false
         )
 
+    private val parsedResponseCache = ParsedResponseCache()
+
     interface NoticeListener {
         /**
          * Called only when there's at least 1 notice to display
@@ -55,16 +59,26 @@ class NoticeClient(
     fun fetchNotice(noticeListener: NoticeListener, languageCode: String) {
         val url = Config.Url.NOTICES
 
-        val request = JsonArrayRequest(
+        // The response is parsed on the network thread, the listener only receives the result
+        val request = JsonArrayParsedRequest(
             url,
-            { response ->
-                onResponseCallback(response, noticeListener, languageCode)
+            { response -> parseNotices(response, languageCode) },
+            { noticeBody ->
+                if (noticeBody != null) {
+                    noticeListener.onNoticeResponse(noticeBody)
+                } else {
+                    noticeListener.onNoNotice()
+                }
             },
             this
         )
+        request.parsedResponseCache = parsedResponseCache
+        // The displayed notices depend on the language and debug mode too
+        request.parsedResultKey = "$url|$languageCode|$isDebugActivated"
 
-        // Invalidating Volley's cache for this URL to always get the latest notice
-        requestQueue.cache.remove(url)
+        // Expiring Volley's cache entry for this URL to always get the latest notice. The entry
+        // is kept for its validators, so an unchanged notice list is not downloaded again.
+        requestQueue.cache.invalidate(url, true)
         requestQueue.add(request)
     }
 
@@ -73,41 +87,33 @@ class NoticeClient(
         Timber.e(error.toString())
     }
 
-    private fun onResponseCallback(
-        response: JSONArray,
-        listener: NoticeListener,
-        languageCode: String
-    ) {
-        try {
-            val noticeBuilder = StringBuilder()
+    /**
+     * Builds the HTML body of the notices to display
+     * @return null if there's no notice to display
+     */
+    @Throws(JSONException::class)
+    private fun parseNotices(response: JSONArray, languageCode: String): String? {
+        val noticeBuilder = StringBuilder()
 
-            // The response contains an array of notices, we display the ones marked as enabled
-            for (i in 0 until response.length()) {
-                val notice = response.getJSONObject(i)
-                val enabled = notice.getBoolean(NoticeContract.ENABLED)
-                val debugEnabled = notice.getBoolean(NoticeContract.ENABLED_DEBUG)
+        // The response contains an array of notices, we display the ones marked as enabled
+        for (i in 0 until response.length()) {
+            val notice = response.getJSONObject(i)
+            val enabled = notice.getBoolean(NoticeContract.ENABLED)
+            val debugEnabled = notice.getBoolean(NoticeContract.ENABLED_DEBUG)
 
-                // Only display notice if it's marked as enabled OR marked as enabled for debug mode
-                // and debug mode is actually turned on:
-                if (enabled || debugEnabled && isDebugActivated) {
-                    val noticeText: String = if (languageCode == "hu") {
-                        notice.getString(NoticeContract.TEXT_HU)
-                    } else {
-                        notice.getString(NoticeContract.TEXT_EN)
-                    }
-                    noticeBuilder.append(noticeText)
-                    noticeBuilder.append("<br /><br />")
+            // Only display notice if it's marked as enabled OR marked as enabled for debug mode
+            // and debug mode is actually turned on:
+            if (enabled || debugEnabled && isDebugActivated) {
+                val noticeText: String = if (languageCode == "hu") {
+                    notice.getString(NoticeContract.TEXT_HU)
+                } else {
+                    notice.getString(NoticeContract.TEXT_EN)
                 }
+                noticeBuilder.append(noticeText)
+                noticeBuilder.append("<br /><br />")
             }
-
-            if (noticeBuilder.isNotEmpty()) {
-                listener.onNoticeResponse(noticeBuilder.toString())
-            } else {
-                listener.onNoNotice()
-            }
-        } catch (ex: Exception) {
-            // We don't display anything on the UI because this feature is meant to be silent
-            Timber.e(ex.toString())
         }
+
+        return if (noticeBuilder.isNotEmpty()) noticeBuilder.toString() else null
     }
 }
@@ -27,6 +27,7 @@ import com.ofalvai.bpinfo.Config
 import com.ofalvai.bpinfo.model.RouteSubscription
 import com.ofalvai.bpinfo.util.addTo
 import org.json.JSONArray
+import org.json.JSONException
 import org.json.JSONObject
 import timber.log.Timber
 
@@ -36,9 +37,21 @@ class SubscriptionClient(
 
     interface Callback {
         fun onSubscriptionError(error: Throwable)
-        fun onPostSubscriptionResponse(subscription: RouteSubscription)
         fun onGetSubscriptionResponse(routeIDList: List<String>)
-        fun onDeleteSubscriptionResponse(subscription: RouteSubscription)
+    }
+
+    interface SyncCallback {
+        /**
+         * Called once every request of the batch has finished
+         * @param syncedRouteIDs Routes whose change has been accepted by the backend
+         * @param errors Errors of the failed requests by route ID
+         */
+        fun onSyncFinished(syncedRouteIDs: Set<String>, errors: Map<String, Throwable>)
+
+        /**
+         * Called if the FCM token couldn't be retrieved, no request has been sent
+         */
+        fun onTokenError(error: Throwable)
     }
 
     interface TokenReplaceCallback {
@@ -57,26 +70,16 @@ class SubscriptionClient(
         private const val KEY_NEW_TOKEN = "new"
     }
 
-    fun postSubscription(routeID: String, callback: Callback) {
-        withToken(callback) { token ->
-            val url = SUBSCRIPTION_URL
-
-            val body = JSONObject().apply {
-                put("routeId", routeID)
-                put("token", token)
-            }
-
-            JsonObjectRequest(Request.Method.POST, url, body,
-                {
-                    val subscription = parseSubscription(it)
-                    callback.onPostSubscriptionResponse(subscription)
-                },
-                {
-                    Timber.e(it.toString())
-                    callback.onSubscriptionError(it)
-                }
-            ).addTo(requestQueue)
-        }
+    /**
+     * Sends a batch of subscription changes. The FCM token is looked up only once for the whole
+     * batch, then the requests of the routes are sent in parallel, because the backend has no
+     * batch endpoint.
+     * @param changes Route IDs mapped to true for subscribing and false for unsubscribing
+     */
+    fun syncSubscriptions(changes: Map<String, Boolean>, callback: SyncCallback) {
+        FirebaseInstanceId.getInstance().instanceId
+            .addOnSuccessListener { sendChanges(it.token, changes, callback) }
+            .addOnFailureListener { callback.onTokenError(it) }
     }
 
     fun getSubscriptions(callback: Callback) {
@@ -98,27 +101,6 @@ class SubscriptionClient(
         }
     }
 
-    fun deleteSubscription(routeID: String, callback: Callback) {
-        withToken(callback) { token ->
-            val url = Uri.parse(SUBSCRIPTION_URL)
-                .buildUpon()
-                .appendPath(token)
-                .appendPath(routeID)
-                .toString()
-
-            JsonObjectRequest(Request.Method.DELETE, url, null,
-                {
-                    val subscription = parseSubscription(it)
-                    callback.onDeleteSubscriptionResponse(subscription)
-                },
-                {
-                    Timber.e(it.toString())
-                    callback.onSubscriptionError(it)
-                }
-            ).addTo(requestQueue)
-        }
-    }
-
     fun replaceToken(old: String, new: String, callback: TokenReplaceCallback) {
         val url = Uri.parse(SUBSCRIPTION_URL)
             .buildUpon()
@@ -142,6 +124,76 @@ class SubscriptionClient(
         ).addTo(requestQueue)
     }
 
+    private fun sendChanges(token: String, changes: Map<String, Boolean>, callback: SyncCallback) {
+        if (changes.isEmpty()) {
+            callback.onSyncFinished(emptySet(), emptyMap())
+            return
+        }
+
+        val syncedRouteIDs = HashSet<String>()
+        val errors = HashMap<String, Throwable>()
+        var remaining = changes.size
+
+        // Volley delivers the responses on the main thread, there's no need for synchronization
+        val onFinished = {
+            remaining--
+            if (remaining == 0) {
+                callback.onSyncFinished(syncedRouteIDs, errors)
+            }
+        }
+
+        for ((routeID, isSubscribed) in changes) {
+            val onResponse = { response: JSONObject ->
+                try {
+                    syncedRouteIDs.add(parseSubscription(response).routeID)
+                } catch (ex: JSONException) {
+                    errors[routeID] = ex
+                }
+                onFinished()
+            }
+            val onError = { error: VolleyError ->
+                Timber.e(error.toString())
+                errors[routeID] = error
+                onFinished()
+            }
+
+            if (isSubscribed) {
+                createPostRequest(token, routeID, onResponse, onError).addTo(requestQueue)
+            } else {
+                createDeleteRequest(token, routeID, onResponse, onError).addTo(requestQueue)
+            }
+        }
+    }
+
+    private fun createPostRequest(
+        token: String,
+        routeID: String,
+        onResponse: (JSONObject) -> Unit,
+        onError: (VolleyError) -> Unit
+    ): JsonObjectRequest {
+        val body = JSONObject().apply {
+            put(KEY_ROUTE_ID, routeID)
+            put(KEY_TOKEN, token)
+        }
+
+        return JsonObjectRequest(Request.Method.POST, SUBSCRIPTION_URL, body, onResponse, onError)
+    }
+
+    private fun createDeleteRequest(
+        token: String,
+        routeID: String,
+        onResponse: (JSONObject) -> Unit,
+        onError: (VolleyError) -> Unit
+    ): JsonObjectRequest {
+        val url = Uri.parse(SUBSCRIPTION_URL)
+            .buildUpon()
+            .appendPath(token)
+            .appendPath(routeID)
+            .toString()
+
+        return JsonObjectRequest(Request.Method.DELETE, url, null, onResponse, onError)
+    }
+
     /**
      * Executes the given action after successfully retrieved the current FCM token
      * @param callback Used for signaling errors
@@ -18,16 +18,31 @@ package com.ofalvai.bpinfo.injection
 
 import android.content.SharedPreferences
 import android.preference.PreferenceManager
+import com.android.volley.toolbox.BaseHttpStack
+import com.ofalvai.bpinfo.Config
+import com.ofalvai.bpinfo.R
+import com.ofalvai.bpinfo.api.OkHttpStack
+import com.ofalvai.bpinfo.api.RouteRegistry
+import com.ofalvai.bpinfo.notifications.SubscriptionQueue
+import com.ofalvai.bpinfo.notifications.SubscriptionStore
+import com.ofalvai.bpinfo.repository.AlertCache
+import com.ofalvai.bpinfo.repository.AlertStore
 import com.ofalvai.bpinfo.repository.AlertsRepository
+import com.ofalvai.bpinfo.ui.alertdetail.AlertDescriptionCache
 import com.ofalvai.bpinfo.ui.alertdetail.AlertDetailViewModel
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
 import com.ofalvai.bpinfo.ui.alertlist.AlertListViewModel
 import com.ofalvai.bpinfo.ui.alertlist.AlertsViewModel
 import com.ofalvai.bpinfo.ui.notifications.NotificationsViewModel
 import com.ofalvai.bpinfo.util.Analytics
+import com.ofalvai.bpinfo.util.LocaleManager
+import okhttp3.ConnectionPool
+import okhttp3.OkHttpClient
 import org.koin.android.ext.koin.androidContext
 import org.koin.androidx.viewmodel.ext.koin.viewModel
 import org.koin.dsl.module.module
+import java.io.File
+import java.util.concurrent.TimeUnit
 
 val appModule = module {
 
@@ -37,20 +52,65 @@ val appModule = module {
 
     single { Analytics(androidContext()) }
 
-    single { AlertsRepository(get(), androidContext(), get()) }
+    single {
+        val sharedPreferences: SharedPreferences = get()
+        val dataSource = sharedPreferences.getString(
+            androidContext().getString(R.string.pref_key_data_source),
+            androidContext().getString(R.string.pref_key_data_source_default)
+        )
+        val languageCode = LocaleManager.getCurrentLanguageCode(sharedPreferences)
+        val debugModeKey = androidContext().getString(R.string.pref_key_debug_mode)
+        val cacheDir = androidContext().cacheDir
+        // Debug mode can be toggled without restarting Koin, so it's checked on every access
+        AlertCache {
+            val isDebugMode = sharedPreferences.getBoolean(debugModeKey, false)
+            val debugSuffix = if (isDebugMode) "_debug" else ""
+            File(cacheDir, "alerts_${dataSource}_$languageCode$debugSuffix.bin")
+        }
+    }
+
+    single { AlertStore() }
+
+    single { RouteRegistry() }
+
+    single { AlertDescriptionCache(get()) }
+
+    single { SubscriptionQueue(get(), androidContext()) }
+
+    single { SubscriptionStore(get(), get()) }
+
+    single { AlertsRepository(get(), androidContext(), get(), get(), get()) }
+}
+
+/**
+ * The HTTP transport of Volley's RequestQueue, used by every API client
+ */
+val networkModule = module {
+
+    single {
+        OkHttpClient.Builder()
+            .connectionPool(ConnectionPool(
+                Config.Behavior.HTTP_MAX_IDLE_CONNECTIONS,
+                Config.Behavior.HTTP_KEEP_ALIVE_MIN.toLong(),
+                TimeUnit.MINUTES
+            ))
+            .build()
+    }
+
+    single<BaseHttpStack> { OkHttpStack(get()) }
 }
 
 val screenModule = module {
 
-    viewModel { NotificationsViewModel(get(), get(), get()) }
+    viewModel { NotificationsViewModel(get(), get(), get(), get()) }
 
     viewModel { AlertsViewModel(get(), get(), get()) }
 
     viewModel { (type: AlertListType) ->
-        AlertListViewModel(type, get(), androidContext())
+        AlertListViewModel(type, get(), get(), androidContext())
     }
 
-    viewModel { AlertDetailViewModel(get()) }
+    viewModel { AlertDetailViewModel(get(), get()) }
 }
 // Note: apiModule depends on selected product flavor (mock/live)
-val allModules = listOf(appModule, screenModule, apiModule)
\ No newline at end of file
+val allModules = listOf(appModule, networkModule, screenModule, apiModule)
\ No newline at end of file
@@ -58,4 +58,18 @@ data class Alert(
      * Whether the alert object contains all required information, or a second API call is needed
      */
     val isPartial: Boolean = false
-) : Serializable
+) : Serializable {
+
+    /**
+     * Affected routes without the visually identical duplicates, computed once when the alert is
+     * parsed. Some affected routes returned by the API are identical if we display only their
+     * shortName and color.
+     */
+    val visibleRoutes: List<Route> = affectedRoutes.distinctBy { it.displayKey }
+
+    /**
+     * Types of the affected routes as a bitmask of [RouteType.mask] values, computed once when
+     * the alert is parsed
+     */
+    val routeTypeMask: Int = RouteType.maskOf(affectedRoutes.map { it.type })
+}
@@ -52,6 +52,35 @@ data class Route(
     val discontinued: Boolean
 ) : Serializable, Comparable<Route> {
 
+    companion object {
+        /**
+         * Possible values and meanings:
+         * BKK_VP: VillamosPótló
+         * BKK_V: VillamosPótló
+         * BKK_OP: Operatív Pótló (Metró, Villamos)
+         * BKK_TP: TroliPótló
+         * BKK_HP: HévPótló
+         * BKK_MP: MetróPótló
+         * to be continued...
+         */
+        private val REPLACEMENT_ID_PATTERN = "BKK_(VP?|OP|TP|HP|MP)[0-9A-Z]+".toRegex()
+    }
+
+    // Classification below is computed once when the route is parsed, instead of on every use
+
+    /**
+     * Whether the route seems to be a replacement route from its ID format.
+     * It's needed because the API returns replacement routes mixed together with the affected
+     * routes.
+     */
+    val isReplacement: Boolean = REPLACEMENT_ID_PATTERN.matches(id)
+
+    /**
+     * Routes are displayed only by their shortName and color (which depends on the type). Routes
+     * with the same display key are visually identical, it's enough to display one of them.
+     */
+    val displayKey: String = "$type|$shortName"
+
     override fun compareTo(other: Route): Int {
         return this.id.compareTo(other.id)
     }
@@ -26,5 +26,16 @@ enum class RouteType {
     CHAIRLIFT,
     FUNICULAR,
 
-    OTHER
+    OTHER;
+
+    /**
+     * Single bit of the type, route types of an alert are stored as a bitmask
+     */
+    val mask: Int = 1 shl ordinal
+
+    companion object {
+        fun maskOf(types: Collection<RouteType>): Int {
+            return types.fold(0) { mask, type -> mask or type.mask }
+        }
+    }
 }
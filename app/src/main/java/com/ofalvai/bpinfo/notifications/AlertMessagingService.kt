@@ -58,7 +58,8 @@ class AlertMessagingService : FirebaseMessagingService() {
                     Timber.d("Title: $title")
                     Timber.d("Text: $text")
 
-                    NotificationMaker.make(this, id, title, text)
+                    NotificationCoalescer.add(this, NotificationCoalescer.Message(id, title, text))
+                    scheduleAlertPrefetch(id)
                 } else {
                     Timber.e("Message data is null")
                 }
@@ -112,6 +113,24 @@ class AlertMessagingService : FirebaseMessagingService() {
         )
     }
 
+    private fun scheduleAlertPrefetch(alertId: String) {
+        val constraints = Constraints.Builder()
+            .setRequiredNetworkType(NetworkType.CONNECTED)
+            .build()
+
+        val request = OneTimeWorkRequestBuilder<AlertPrefetchWorker>()
+            .setInputData(workDataOf(AlertPrefetchWorker.KEY_ALERT_ID to alertId))
+            .setConstraints(constraints)
+            .build()
+
+        // A newer message of the same alert replaces the pending prefetch
+        WorkManager.getInstance(applicationContext).enqueueUniqueWork(
+            "${AlertPrefetchWorker.TAG}_$alertId",
+            ExistingWorkPolicy.REPLACE,
+            request
+        )
+    }
+
     private fun persistNewToken(newToken: String) {
         sharedPreferences.edit()
             .putString(PREF_KEY_TOKEN, newToken)
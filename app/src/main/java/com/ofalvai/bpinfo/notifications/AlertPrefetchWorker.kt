@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.notifications
+
+import android.content.Context
+import androidx.work.CoroutineWorker
+import androidx.work.ListenableWorker
+import androidx.work.WorkerFactory
+import androidx.work.WorkerParameters
+import com.android.volley.NoConnectionError
+import com.android.volley.TimeoutError
+import com.ofalvai.bpinfo.repository.AlertsRepository
+import kotlinx.coroutines.CancellationException
+import timber.log.Timber
+
+/**
+ * Fetches and persists the details of an alert when its notification arrives, so that opening the
+ * notification can display the alert right away.
+ */
+class AlertPrefetchWorker(
+    appContext: Context,
+    params: WorkerParameters,
+    private val alertsRepository: AlertsRepository
+) : CoroutineWorker(appContext, params) {
+
+    companion object {
+        const val TAG = "AlertPrefetchWorker"
+        const val KEY_ALERT_ID = "alert_id"
+
+        private const val MAX_ATTEMPTS = 3
+    }
+
+    /**
+     * @param repositoryProvider The repository is looked up for each worker, because it's recreated
+     * when the data source changes
+     */
+    class Factory(
+        private val repositoryProvider: () -> AlertsRepository
+    ) : WorkerFactory() {
+
+        override fun createWorker(
+            appContext: Context,
+            workerClassName: String,
+            workerParameters: WorkerParameters
+        ): ListenableWorker? {
+            return if (workerClassName == AlertPrefetchWorker::class.java.name) {
+                AlertPrefetchWorker(appContext, workerParameters, repositoryProvider())
+            } else {
+                null
+            }
+        }
+    }
+
+    override suspend fun doWork(): Result {
+        val id = inputData.getString(KEY_ALERT_ID) ?: return Result.failure()
+
+        return try {
+            alertsRepository.prefetchAlert(id)
+            Timber.d("Alert %s prefetched", id)
+            Result.success()
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Exception) {
+            Timber.w(ex, "Failed to prefetch alert %s", id)
+            val isTransient = ex is NoConnectionError || ex is TimeoutError
+            if (isTransient && runAttemptCount < MAX_ATTEMPTS - 1) Result.retry() else Result.failure()
+        }
+    }
+}
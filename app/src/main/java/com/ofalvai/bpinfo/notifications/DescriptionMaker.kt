@@ -31,7 +31,36 @@ object DescriptionMaker {
     private const val DATA_KEY_ROUTE_SUBWAY = "route_subway"
     private const val DATA_KEY_ROUTE_OTHER = "route_other"
 
-    private const val DATA_KEY_ROUTE_SEPARATOR = "|"
+    private const val DATA_KEY_ROUTE_SEPARATOR = '|'
+
+    /**
+     * Order of the route type lines in the description
+     */
+    private val ROUTE_TYPE_KEYS = arrayOf(
+        DATA_KEY_ROUTE_SUBWAY,
+        DATA_KEY_ROUTE_BUS,
+        DATA_KEY_ROUTE_TRAM,
+        DATA_KEY_ROUTE_TROLLEYBUS,
+        DATA_KEY_ROUTE_RAIL,
+        DATA_KEY_ROUTE_FERRY,
+        DATA_KEY_ROUTE_OTHER
+    )
+
+    /**
+     * Localized route type labels, resolved once per locale
+     * @param labels Route type labels in the order of [ROUTE_TYPE_KEYS]
+     * @param prefixesEn English line prefixes in the order of [ROUTE_TYPE_KEYS], already capitalized
+     */
+    private class Labels(
+        val locale: Locale,
+        val defaultLocale: Locale,
+        val isHungarian: Boolean,
+        val labels: Array<String>,
+        val prefixesEn: Array<String>
+    )
+
+    @Volatile
+    private var cachedLabels: Labels? = null
 
     /**
      * Makes the localized description of affected routes, grouped by route types.
@@ -41,44 +70,45 @@ object DescriptionMaker {
      */
     @JvmStatic
     fun makeDescription(routeData: Map<String, String>, context: Context): String {
-        val subwayList =
-            makeRouteList(routeData[DATA_KEY_ROUTE_SUBWAY], context, DATA_KEY_ROUTE_SUBWAY)
-        val busList = makeRouteList(routeData[DATA_KEY_ROUTE_BUS], context, DATA_KEY_ROUTE_BUS)
-        val tramList =
-            makeRouteList(routeData[DATA_KEY_ROUTE_TRAM], context, DATA_KEY_ROUTE_TRAM)
-        val trolleyList = makeRouteList(
-            routeData[DATA_KEY_ROUTE_TROLLEYBUS],
-            context,
-            DATA_KEY_ROUTE_TROLLEYBUS
-        )
-        val railList =
-            makeRouteList(routeData[DATA_KEY_ROUTE_RAIL], context, DATA_KEY_ROUTE_RAIL)
-        val ferryList =
-            makeRouteList(routeData[DATA_KEY_ROUTE_FERRY], context, DATA_KEY_ROUTE_FERRY)
-        val otherList =
-            makeRouteList(routeData[DATA_KEY_ROUTE_OTHER], context, DATA_KEY_ROUTE_OTHER)
-
-        return arrayListOf(
-            subwayList,
-            busList,
-            tramList,
-            trolleyList,
-            railList,
-            ferryList,
-            otherList
-        )
-            .asSequence()
-            .filter { it.isNotEmpty() }
-            .joinToString(separator = "\n")
+        val labels = getLabels(context)
+        val sb = StringBuilder()
+
+        ROUTE_TYPE_KEYS.forEachIndexed { index, routeType ->
+            val routes = routeData[routeType]
+            if (routes.isNullOrEmpty()) return@forEachIndexed
+
+            val lineStart = sb.length
+            if (sb.isNotEmpty()) sb.append('\n')
+            val routesStart = sb.length
+
+            if (labels.isHungarian) {
+                appendRouteLineHu(sb, routes, routeType, labels.labels[index])
+            } else {
+                appendRouteLineEn(sb, routes, labels.prefixesEn[index])
+            }
+
+            // Empty lines are omitted along with their separator
+            if (sb.length == routesStart) sb.setLength(lineStart)
+        }
+
+        return sb.toString()
     }
 
-    private fun makeRouteList(routeData: String?, context: Context, routeType: String): String {
-        val langCode = ConfigurationCompat.getLocales(context.resources.configuration)[0].language
-        return if (langCode == "hu") {
-            makeRouteLineHu(routeData, context, routeType)
-        } else {
-            makeRouteLineEn(routeData, context, routeType)
+    private fun getLabels(context: Context): Labels {
+        val locale = ConfigurationCompat.getLocales(context.resources.configuration)[0]
+        val defaultLocale = Locale.getDefault()
+
+        val cached = cachedLabels
+        if (cached != null && cached.locale == locale && cached.defaultLocale == defaultLocale) {
+            return cached
+        }
+
+        val labels = Array(ROUTE_TYPE_KEYS.size) {
+            getLocalizedRouteType(context, ROUTE_TYPE_KEYS[it])
         }
+        val prefixesEn = Array(labels.size) { "${labels[it]} ".capitalize(defaultLocale) }
+        return Labels(locale, defaultLocale, locale.language == "hu", labels, prefixesEn)
+            .also { cachedLabels = it }
     }
 
     private fun getLocalizedRouteType(context: Context, routeType: String): String {
@@ -94,49 +124,68 @@ object DescriptionMaker {
         }
     }
 
-    private fun makeRouteLineHu(
-        routeData: String?,
-        context: Context,
-        routeType: String
-    ): String {
-        @Suppress("LiftReturnOrAssignment")
-        if (routeData != null && routeData.isNotEmpty()) {
-            val routeList: String = routeData
-                .split(DATA_KEY_ROUTE_SEPARATOR)
-                .asSequence()
-                .map { it.trim() }
-                .filter { it.isNotEmpty() }
-                .map(this::numberPostfixHu)
-                .distinct()
-                .joinToString(separator = ", ")
-
-            if (routeType == DATA_KEY_ROUTE_OTHER) {
-                // We don't append the type of route, because the route's shortName is the type itself
-                return routeList
-            } else {
-                val name = getLocalizedRouteType(context, routeType)
-                return "$routeList $name"
-            }
-        } else {
-            return ""
+    /**
+     * Appends the route list with Hungarian number postfixes, omitting empty and duplicate routes,
+     * followed by the route type label
+     */
+    private fun appendRouteLineHu(
+        sb: StringBuilder,
+        routeData: String,
+        routeType: String,
+        routeTypeLabel: String
+    ) {
+        val listStart = sb.length
+        // Route lists are short, a linear search is cheaper than hashing
+        val appendedRoutes = ArrayList<String>()
+
+        forEachRoute(routeData) { start, end ->
+            if (start == end) return@forEachRoute
+
+            val route = numberPostfixHu(routeData.substring(start, end))
+            if (route in appendedRoutes) return@forEachRoute
+
+            if (sb.length > listStart) sb.append(", ")
+            sb.append(route)
+            appendedRoutes.add(route)
+        }
+
+        // We don't append the type of route for OTHER, because the route's shortName is the type itself
+        if (routeType != DATA_KEY_ROUTE_OTHER) {
+            sb.append(' ').append(routeTypeLabel)
         }
     }
 
-    private fun makeRouteLineEn(
-        routeData: String?,
-        context: Context,
-        routeType: String
-    ): String {
-        val sb = StringBuilder()
-        if (routeData != null && routeData.isNotEmpty()) {
-            val name = getLocalizedRouteType(context, routeType)
-            sb.append("$name ")
-            val routeList = routeData
-                .split(DATA_KEY_ROUTE_SEPARATOR)
-                .joinToString(separator = ", ") { it.trim() }
-            sb.append(routeList)
+    /**
+     * Appends the route type label followed by every route of the list
+     */
+    private fun appendRouteLineEn(sb: StringBuilder, routeData: String, prefix: String) {
+        sb.append(prefix)
+        var isFirst = true
+        forEachRoute(routeData) { start, end ->
+            if (!isFirst) sb.append(", ")
+            sb.append(routeData, start, end)
+            isFirst = false
+        }
+    }
+
+    /**
+     * Calls [action] with the trimmed bounds of each route in the separated list, including
+     * empty ones
+     */
+    private inline fun forEachRoute(routeData: String, action: (start: Int, end: Int) -> Unit) {
+        var partStart = 0
+        while (partStart <= routeData.length) {
+            var partEnd = routeData.indexOf(DATA_KEY_ROUTE_SEPARATOR, partStart)
+            if (partEnd == -1) partEnd = routeData.length
+
+            var start = partStart
+            var end = partEnd
+            while (start < end && routeData[start].isWhitespace()) start++
+            while (end > start && routeData[end - 1].isWhitespace()) end--
+            action(start, end)
+
+            partStart = partEnd + 1
         }
-        return sb.toString().capitalize(Locale.getDefault())
     }
 
     private fun numberPostfixHu(name: String): String {
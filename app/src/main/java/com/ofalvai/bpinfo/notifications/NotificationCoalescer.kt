@@ -0,0 +1,154 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.notifications
+
+import android.app.NotificationManager
+import android.content.Context
+import android.os.Build
+import android.os.SystemClock
+import androidx.annotation.WorkerThread
+import androidx.core.content.getSystemService
+import timber.log.Timber
+
+/**
+ * Posts the notifications of FCM messages. A single message is posted as a standalone
+ * notification, further messages are grouped with a summary while the previous ones are displayed.
+ * Notifications of the same alert are updated in place instead of being posted again.
+ *
+ * Every message is posted right away in onMessageReceived(), nothing is left for later in memory,
+ * so a message can't be lost when the process is killed. Messages arriving in a short window
+ * form a burst: only its first summary alerts, later updates of the group are silent.
+ */
+object NotificationCoalescer {
+
+    data class Message(val id: String, val title: String, val text: String)
+
+    /**
+     * A message arriving within this window after the previous one belongs to the same burst
+     */
+    private const val BURST_WINDOW_MS = 2000L
+
+    /**
+     * Upper limit of child notifications posted in one burst, the rest only appear in the summary
+     */
+    private const val MAX_NOTIFICATIONS_PER_BURST = 5
+
+    const val MAX_SUMMARY_LINES = 7
+
+    private val lock = Any()
+
+    /**
+     * Messages displayed in the notification shade, latest last, keyed by alert ID
+     */
+    private val displayedMessages = LinkedHashMap<String, Message>()
+
+    /**
+     * IDs of [displayedMessages] that have their own notification, the rest only appear in the
+     * summary
+     */
+    private val postedIds = HashSet<String>()
+
+    private var lastMessageTime = 0L
+
+    /**
+     * Child notifications posted in the current burst
+     */
+    private var burstPostedCount = 0
+
+    /**
+     * Whether the summary has already alerted in the current burst
+     */
+    private var isBurstSummaryPosted = false
+
+    @WorkerThread
+    fun add(context: Context, message: Message) {
+        synchronized(lock) {
+            val now = SystemClock.elapsedRealtime()
+            val isNewBurst = now - lastMessageTime > BURST_WINDOW_MS
+            if (isNewBurst) {
+                burstPostedCount = 0
+                isBurstSummaryPosted = false
+            }
+            lastMessageTime = now
+
+            post(context.applicationContext, message, isNewBurst)
+        }
+    }
+
+    private fun post(context: Context, message: Message, isNewBurst: Boolean) {
+        // Notifications posted in the current burst might not be listed as active yet
+        if (isNewBurst) pruneDismissedMessages(context)
+        val wasStandalone = displayedMessages.size == 1
+
+        // A newer message of the same alert replaces the displayed one
+        displayedMessages.remove(message.id)
+        displayedMessages[message.id] = message
+
+        if (displayedMessages.size == 1) {
+            NotificationMaker.make(context, message.id, message.title, message.text)
+            if (postedIds.add(message.id)) burstPostedCount++
+            return
+        }
+
+        Timber.d("Grouping notification ${message.id}, ${displayedMessages.size} in total")
+
+        // A previously posted standalone notification is moved into the group. Updating it doesn't
+        // alert again, because only the summary alerts in the group.
+        if (wasStandalone) {
+            val standalone = displayedMessages.values.first()
+            NotificationMaker.make(
+                context, standalone.id, standalone.title, standalone.text, isGrouped = true
+            )
+        }
+        if (message.id in postedIds || burstPostedCount < MAX_NOTIFICATIONS_PER_BURST) {
+            NotificationMaker.make(
+                context, message.id, message.title, message.text, isGrouped = true
+            )
+            if (postedIds.add(message.id)) burstPostedCount++
+        }
+        NotificationMaker.makeSummary(
+            context, displayedMessages.values.toList(), onlyAlertOnce = isBurstSummaryPosted
+        )
+        isBurstSummaryPosted = true
+    }
+
+    /**
+     * Forgets the messages whose notification has been dismissed by the user. Messages without
+     * their own notification are forgotten when the summary is dismissed. Active notifications
+     * can't be queried before API 23, so a new burst starts a new group there.
+     */
+    private fun pruneDismissedMessages(context: Context) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            displayedMessages.clear()
+            postedIds.clear()
+            return
+        }
+
+        val notificationManager = context.getSystemService<NotificationManager>()
+        val activeIds = notificationManager?.activeNotifications?.map { it.id }?.toSet() ?: emptySet()
+        val isSummaryActive = NotificationMaker.SUMMARY_NOTIFICATION_ID in activeIds
+
+        displayedMessages.values.removeAll {
+            if (it.id in postedIds) {
+                NotificationMaker.parseAlertNumericalId(it.id) !in activeIds
+            } else {
+                !isSummaryActive
+            }
+        }
+        postedIds.retainAll(displayedMessages.keys)
+    }
+}
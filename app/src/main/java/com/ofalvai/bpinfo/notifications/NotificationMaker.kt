@@ -30,40 +30,88 @@ import java.util.*
 object NotificationMaker {
 
     const val INTENT_EXTRA_ALERT_ID = "alert_id"
-    private const val INTENT_REQUEST_CODE = 0
 
-    fun make(context: Context, id: String, title: String, text: String) {
+    private const val GROUP_KEY_ALERTS = "com.ofalvai.bpinfo.ALERTS"
+    const val SUMMARY_NOTIFICATION_ID = 0
+
+    /**
+     * Posts or updates the notification of an alert, its ID is derived from the alert ID
+     * @param isGrouped Whether the notification belongs to the group of [makeSummary]. Grouped
+     * notifications don't alert, only the summary does.
+     */
+    fun make(context: Context, id: String, title: String, text: String, isGrouped: Boolean = false) {
+        val notificationId = parseAlertNumericalId(id)
+
         val intent = Intent(context, AlertListActivity::class.java)
         intent.putExtra(INTENT_EXTRA_ALERT_ID, id)
         intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP)
+        // Each alert needs its own PendingIntent, otherwise they would share the extras
         val pendingIntent = PendingIntent.getActivity(
-            context, INTENT_REQUEST_CODE, intent, PendingIntent.FLAG_ONE_SHOT
+            context, notificationId, intent, PendingIntent.FLAG_ONE_SHOT
         )
 
         val bigTextStyle = NotificationCompat.BigTextStyle()
         bigTextStyle.setBigContentTitle(title)
         bigTextStyle.bigText(text)
 
-        val channelId = context.getString(R.string.notif_channel_alerts_id)
-
-        val notificationBuilder = NotificationCompat.Builder(context, channelId)
-            .setSmallIcon(R.drawable.ic_notification_default)
+        val notificationBuilder = createBuilder(context)
             .setContentTitle(title)
             .setContentText(text)
             .setStyle(bigTextStyle)
-            .setAutoCancel(true)
             .setContentIntent(pendingIntent)
-            .setColor(ContextCompat.getColor(context, R.color.primary))
-            .setShowWhen(true)
-            .setWhen(Date().time)
+
+        if (isGrouped) {
+            notificationBuilder
+                .setGroup(GROUP_KEY_ALERTS)
+                .setGroupAlertBehavior(NotificationCompat.GROUP_ALERT_SUMMARY)
+        }
 
         val notificationManager =
             context.getSystemService<NotificationManager>()
-        val notificationId = parseAlertNumericalId(id)
         notificationManager?.notify(notificationId, notificationBuilder.build())
     }
 
-    private fun parseAlertNumericalId(id: String): Int {
+    /**
+     * Posts or updates the summary notification of the grouped alert notifications
+     * @param messages Alerts of the group, latest last
+     * @param onlyAlertOnce Don't alert again if the summary is already displayed
+     */
+    fun makeSummary(
+        context: Context,
+        messages: List<NotificationCoalescer.Message>,
+        onlyAlertOnce: Boolean = false
+    ) {
+        val intent = Intent(context, AlertListActivity::class.java)
+        intent.addFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP)
+        val pendingIntent = PendingIntent.getActivity(
+            context, SUMMARY_NOTIFICATION_ID, intent, PendingIntent.FLAG_UPDATE_CURRENT
+        )
+
+        val title = context.resources.getQuantityString(
+            R.plurals.actionbar_subtitle_alert_count, messages.size, messages.size
+        )
+        val inboxStyle = NotificationCompat.InboxStyle()
+        inboxStyle.setBigContentTitle(title)
+        messages.asReversed().take(NotificationCoalescer.MAX_SUMMARY_LINES).forEach {
+            inboxStyle.addLine("${it.title}: ${it.text}")
+        }
+
+        val notificationBuilder = createBuilder(context)
+            .setContentTitle(title)
+            .setContentText(messages.last().title)
+            .setStyle(inboxStyle)
+            .setContentIntent(pendingIntent)
+            .setGroup(GROUP_KEY_ALERTS)
+            .setGroupSummary(true)
+            .setNumber(messages.size)
+            .setOnlyAlertOnce(onlyAlertOnce)
+
+        val notificationManager =
+            context.getSystemService<NotificationManager>()
+        notificationManager?.notify(SUMMARY_NOTIFICATION_ID, notificationBuilder.build())
+    }
+
+    fun parseAlertNumericalId(id: String): Int {
         return try {
             id.split("-")[1].toInt()
         } catch (ex: Exception) {
@@ -71,4 +119,14 @@ object NotificationMaker {
         }
     }
 
-}
\ No newline at end of file
+    private fun createBuilder(context: Context): NotificationCompat.Builder {
+        val channelId = context.getString(R.string.notif_channel_alerts_id)
+
+        return NotificationCompat.Builder(context, channelId)
+            .setSmallIcon(R.drawable.ic_notification_default)
+            .setAutoCancel(true)
+            .setColor(ContextCompat.getColor(context, R.color.primary))
+            .setShowWhen(true)
+            .setWhen(Date().time)
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.notifications
+
+import android.content.Context
+import android.content.SharedPreferences
+import androidx.work.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Persisted queue of subscription changes that are not yet accepted by the backend. Changes are
+ * recorded right away, so that the UI can display them without waiting for the network, then they
+ * are sent in batches by [SubscriptionSyncWorker].
+ *
+ * Only the latest change of a route is kept, toggling a route back and forth results in a single
+ * request. The queue has no in-memory state, every instance sees the same SharedPreferences.
+ */
+class SubscriptionQueue(
+    private val sharedPreferences: SharedPreferences,
+    private val appContext: Context
+) {
+
+    companion object {
+        private const val PREF_KEY_QUEUE = "subscription_queue"
+
+        private const val PREFIX_SUBSCRIBE = "+"
+        private const val PREFIX_UNSUBSCRIBE = "-"
+
+        /**
+         * Changes made within this delay are sent together
+         */
+        private const val SYNC_DELAY_SEC = 5L
+
+        private const val SYNC_BACKOFF_SEC = 30L
+
+        private val lock = Any()
+    }
+
+    /**
+     * Route IDs mapped to true for subscribing and false for unsubscribing
+     */
+    val pendingChanges: Map<String, Boolean>
+        get() = synchronized(lock) { readChanges() }
+
+    fun subscribe(routeID: String) = enqueue(routeID, true)
+
+    fun unsubscribe(routeID: String) = enqueue(routeID, false)
+
+    /**
+     * Applies the pending changes to the subscribed route IDs returned by the backend
+     */
+    fun applyTo(routeIDs: MutableSet<String>) {
+        for ((routeID, isSubscribed) in pendingChanges) {
+            if (isSubscribed) routeIDs.add(routeID) else routeIDs.remove(routeID)
+        }
+    }
+
+    /**
+     * Removes the changes that have been accepted by the backend. A change is kept if the route
+     * has been changed again since.
+     */
+    fun remove(syncedChanges: Map<String, Boolean>) {
+        synchronized(lock) {
+            val changes = readChanges()
+            for ((routeID, isSubscribed) in syncedChanges) {
+                if (changes[routeID] == isSubscribed) changes.remove(routeID)
+            }
+            writeChanges(changes)
+        }
+    }
+
+    /**
+     * Schedules sending the pending changes. The run is delayed a bit, so that routes toggled in a
+     * row are sent together, and failed runs are retried with an exponential backoff.
+     */
+    fun scheduleSync() {
+        val constraints = Constraints.Builder()
+            .setRequiredNetworkType(NetworkType.CONNECTED)
+            .build()
+
+        val request = OneTimeWorkRequestBuilder<SubscriptionSyncWorker>()
+            .setConstraints(constraints)
+            .setInitialDelay(SYNC_DELAY_SEC, TimeUnit.SECONDS)
+            .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, SYNC_BACKOFF_SEC, TimeUnit.SECONDS)
+            .build()
+
+        // Changes stay in the queue until they are accepted, so replacing a running sync is safe
+        WorkManager.getInstance(appContext).enqueueUniqueWork(
+            SubscriptionSyncWorker.TAG,
+            ExistingWorkPolicy.REPLACE,
+            request
+        )
+    }
+
+    private fun enqueue(routeID: String, isSubscribed: Boolean) {
+        synchronized(lock) {
+            val changes = readChanges()
+            changes[routeID] = isSubscribed
+            writeChanges(changes)
+        }
+        scheduleSync()
+    }
+
+    private fun readChanges(): MutableMap<String, Boolean> {
+        val entries = sharedPreferences.getStringSet(PREF_KEY_QUEUE, null) ?: emptySet<String>()
+        val changes = HashMap<String, Boolean>()
+        for (entry in entries) {
+            when {
+                entry.startsWith(PREFIX_SUBSCRIBE) -> changes[entry.substring(1)] = true
+                entry.startsWith(PREFIX_UNSUBSCRIBE) -> changes[entry.substring(1)] = false
+            }
+        }
+        return changes
+    }
+
+    private fun writeChanges(changes: Map<String, Boolean>) {
+        val entries = changes.mapTo(HashSet()) { (routeID, isSubscribed) ->
+            (if (isSubscribed) PREFIX_SUBSCRIBE else PREFIX_UNSUBSCRIBE) + routeID
+        }
+        sharedPreferences.edit()
+            .putStringSet(PREF_KEY_QUEUE, entries)
+            .apply()
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.notifications
+
+import android.content.SharedPreferences
+import androidx.annotation.MainThread
+import java.util.concurrent.CopyOnWriteArraySet
+
+/**
+ * Persisted copy of the subscribed route IDs, so that subscriptions are known without waiting for
+ * the backend, even offline. The copy is replaced by every subscription list fetched from the
+ * backend, and the changes of [SubscriptionQueue] are applied on top of it.
+ */
+class SubscriptionStore(
+    private val sharedPreferences: SharedPreferences,
+    private val subscriptionQueue: SubscriptionQueue
+) {
+
+    companion object {
+        private const val PREF_KEY_ROUTE_IDS = "subscribed_route_ids"
+
+        private val lock = Any()
+
+        /**
+         * Number of completed syncs, guarded by [lock]. Shared by every instance, like the
+         * persisted copy.
+         */
+        private var syncCount = 0
+
+        /**
+         * Shared by every instance, because the sync worker keeps its instance across Koin restarts
+         */
+        private val rejectionListeners = CopyOnWriteArraySet<RejectionListener>()
+    }
+
+    interface RejectionListener {
+        /**
+         * Called on the main thread after the changes have been dropped, the routes are back to
+         * their synced state
+         * @param rejectedChanges Route IDs mapped to the rejected subscribe or unsubscribe change
+         */
+        fun onChangesRejected(rejectedChanges: Map<String, Boolean>)
+    }
+
+    /**
+     * True if the subscriptions have been fetched from the backend at least once
+     */
+    val isLoaded: Boolean
+        get() = sharedPreferences.contains(PREF_KEY_ROUTE_IDS)
+
+    /**
+     * Subscribed route IDs including the changes not yet accepted by the backend
+     */
+    val subscribedRouteIDs: Set<String>
+        get() {
+            val routeIDs = synchronized(lock) { readRouteIDs() }
+            subscriptionQueue.applyTo(routeIDs)
+            return routeIDs
+        }
+
+    /**
+     * Changes whenever a sync completes, see [update]
+     */
+    val syncGeneration: Int
+        get() = synchronized(lock) { syncCount }
+
+    fun isSubscribed(routeID: String): Boolean = routeID in subscribedRouteIDs
+
+    fun subscribe(routeID: String) = subscriptionQueue.subscribe(routeID)
+
+    fun unsubscribe(routeID: String) = subscriptionQueue.unsubscribe(routeID)
+
+    /**
+     * Replaces the persisted copy with the subscription list fetched from the backend. The list is
+     * ignored if a sync has completed since it was requested, because it might not contain the
+     * synced changes.
+     * @param requestGeneration [syncGeneration] at the time the list was requested
+     * @return True if the persisted copy has been replaced
+     */
+    fun update(routeIDs: Collection<String>, requestGeneration: Int): Boolean {
+        synchronized(lock) {
+            if (requestGeneration != syncCount) return false
+
+            writeRouteIDs(routeIDs.toHashSet())
+            return true
+        }
+    }
+
+    /**
+     * Applies the changes accepted by the backend to the persisted copy, and removes them from
+     * [SubscriptionQueue]
+     */
+    fun markSynced(syncedChanges: Map<String, Boolean>) {
+        synchronized(lock) {
+            val routeIDs = readRouteIDs()
+            for ((routeID, isSubscribed) in syncedChanges) {
+                if (isSubscribed) routeIDs.add(routeID) else routeIDs.remove(routeID)
+            }
+            writeRouteIDs(routeIDs)
+            subscriptionQueue.remove(syncedChanges)
+            if (syncedChanges.isNotEmpty()) syncCount++
+        }
+    }
+
+    /**
+     * Removes the changes rejected by the backend from [SubscriptionQueue], and notifies the
+     * [RejectionListener]s so that the routes can be reverted on the screen
+     */
+    @MainThread
+    fun markRejected(rejectedChanges: Map<String, Boolean>) {
+        subscriptionQueue.remove(rejectedChanges)
+        rejectionListeners.forEach { it.onChangesRejected(rejectedChanges) }
+    }
+
+    fun addRejectionListener(listener: RejectionListener) {
+        rejectionListeners.add(listener)
+    }
+
+    fun removeRejectionListener(listener: RejectionListener) {
+        rejectionListeners.remove(listener)
+    }
+
+    private fun readRouteIDs(): MutableSet<String> {
+        // The returned set must not be modified
+        return HashSet(sharedPreferences.getStringSet(PREF_KEY_ROUTE_IDS, null) ?: emptySet())
+    }
+
+    private fun writeRouteIDs(routeIDs: Set<String>) {
+        sharedPreferences.edit()
+            .putStringSet(PREF_KEY_ROUTE_IDS, routeIDs)
+            .apply()
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.notifications
+
+import android.content.Context
+import androidx.concurrent.futures.CallbackToFutureAdapter
+import androidx.work.ListenableWorker
+import androidx.work.WorkerFactory
+import androidx.work.WorkerParameters
+import com.android.volley.VolleyError
+import com.google.common.util.concurrent.ListenableFuture
+import com.ofalvai.bpinfo.api.subscription.SubscriptionClient
+import com.ofalvai.bpinfo.util.Analytics
+import timber.log.Timber
+
+/**
+ * Sends the pending changes of [SubscriptionQueue] to the backend. The run is retried while
+ * changes fail without a response or with a server error. Changes rejected by the backend with a
+ * client error are dropped.
+ */
+class SubscriptionSyncWorker(
+    appContext: Context,
+    params: WorkerParameters,
+    private val subscriptionClient: SubscriptionClient,
+    private val subscriptionQueue: SubscriptionQueue,
+    private val subscriptionStore: SubscriptionStore,
+    private val analytics: Analytics
+) : ListenableWorker(appContext, params) {
+
+    companion object {
+        const val TAG = "SubscriptionSyncWorker"
+    }
+
+    class Factory(
+        private val subscriptionClient: SubscriptionClient,
+        private val subscriptionQueue: SubscriptionQueue,
+        private val subscriptionStore: SubscriptionStore,
+        private val analytics: Analytics
+    ) : WorkerFactory() {
+
+        override fun createWorker(
+            appContext: Context,
+            workerClassName: String,
+            workerParameters: WorkerParameters
+        ): ListenableWorker? {
+            return if (workerClassName == SubscriptionSyncWorker::class.java.name) {
+                SubscriptionSyncWorker(
+                    appContext,
+                    workerParameters,
+                    subscriptionClient,
+                    subscriptionQueue,
+                    subscriptionStore,
+                    analytics
+                )
+            } else {
+                null
+            }
+        }
+    }
+
+    /**
+     * Only a 4xx response means that the change itself is wrong. Errors without a response
+     * (no connection, timeout), 5xx responses and unexpected bodies, eg. from a proxy, are retried.
+     */
+    private fun isRejected(error: Throwable): Boolean {
+        val statusCode = (error as? VolleyError)?.networkResponse?.statusCode ?: return false
+        return statusCode in 400..499
+    }
+
+    override fun startWork(): ListenableFuture<Result> {
+        val changes = subscriptionQueue.pendingChanges
+
+        return CallbackToFutureAdapter.getFuture { completer ->
+            if (changes.isEmpty()) {
+                completer.set(Result.success())
+                return@getFuture TAG
+            }
+
+            Timber.d("Syncing %d subscription changes", changes.size)
+            subscriptionClient.syncSubscriptions(
+                changes,
+                object : SubscriptionClient.SyncCallback {
+                    override fun onSyncFinished(
+                        syncedRouteIDs: Set<String>,
+                        errors: Map<String, Throwable>
+                    ) {
+                        subscriptionStore.markSynced(changes.filterKeys { it in syncedRouteIDs })
+
+                        // Retrying a rejected change would fail the same way forever
+                        val rejectedErrors = errors.filterValues { isRejected(it) }
+                        val rejectedChanges = changes.filterKeys { it in rejectedErrors }
+                        if (rejectedChanges.isNotEmpty()) {
+                            Timber.w("Dropping rejected subscription changes: %s", rejectedChanges)
+                            rejectedErrors.values.forEach { analytics.logException(it) }
+                            subscriptionStore.markRejected(rejectedChanges)
+                        }
+
+                        val retriedCount = errors.size - rejectedErrors.size
+                        if (retriedCount > 0) {
+                            Timber.w("%d subscription changes failed, retrying", retriedCount)
+                            completer.set(Result.retry())
+                        } else {
+                            completer.set(Result.success())
+                        }
+                    }
+
+                    override fun onTokenError(error: Throwable) {
+                        // The token lookup fails when offline too
+                        Timber.w(error, "Failed to get the FCM token, retrying")
+                        completer.set(Result.retry())
+                    }
+                })
+            TAG
+        }
+    }
+}
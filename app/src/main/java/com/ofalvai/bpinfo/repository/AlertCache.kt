@@ -0,0 +1,331 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.repository
+
+import android.os.Handler
+import android.os.Looper
+import androidx.annotation.WorkerThread
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+import com.ofalvai.bpinfo.util.newSerialExecutor
+import timber.log.Timber
+import java.io.*
+
+/**
+ * Persists the last successfully fetched alert lists in a compact binary file, so that the lists
+ * can be displayed right after a cold start, while the network request is still in flight.
+ *
+ * The full details of single alerts are persisted separately, eg. the alert of a notification
+ * prefetched in the background, so that opening the notification doesn't wait for the network.
+ *
+ * Reading and writing happens on a single background thread, results are delivered on the main
+ * thread.
+ * @param fileProvider Returns the file of the alert lists, called before every file access.
+ * Separate files should be used for each data source, language and debug mode, because their
+ * alerts are not interchangeable.
+ */
+class AlertCache(private val fileProvider: () -> File) {
+
+    companion object {
+        private const val MAGIC = 0x42504943 // "BPIC"
+
+        /**
+         * Needs to be incremented on every change of the file format, older files are ignored
+         */
+        private const val FORMAT_VERSION = 1
+
+        /**
+         * Number of alert detail files kept, older ones are deleted
+         */
+        private const val MAX_DETAIL_FILES = 16
+    }
+
+    class Entry(
+        /**
+         * Time of writing the file in milliseconds since the UNIX epoch
+         */
+        val savedAt: Long,
+        val todayAlerts: List<Alert>,
+        val futureAlerts: List<Alert>
+    )
+
+    private val executor = newSerialExecutor("AlertCache")
+
+    private val mainHandler by lazy { Handler(Looper.getMainLooper()) }
+
+    private val file: File
+        get() = fileProvider()
+
+    private val detailsDirectory: File
+        get() = file.let { File(it.parentFile, "${it.nameWithoutExtension}_details") }
+
+    /**
+     * Reads the cached alerts in the background.
+     * @param callback Called on the main thread, only if there's a valid cache entry
+     */
+    fun load(callback: (Entry) -> Unit) {
+        executor.execute {
+            val entry = read()
+            if (entry != null) {
+                mainHandler.post { callback(entry) }
+            }
+        }
+    }
+
+    /**
+     * Replaces the cached alerts in the background
+     */
+    fun save(todayAlerts: List<Alert>, futureAlerts: List<Alert>) {
+        executor.execute {
+            write(Entry(System.currentTimeMillis(), todayAlerts, futureAlerts))
+        }
+    }
+
+    /**
+     * Marks the cached alerts as up to date without rewriting them, when a fetch returned the same
+     * alerts
+     */
+    fun touch() {
+        executor.execute {
+            val file = file
+            if (!file.exists()) return@execute
+            try {
+                RandomAccessFile(file, "rw").use {
+                    // The header is 2 ints, followed by the time of saving
+                    it.seek(8)
+                    it.writeLong(System.currentTimeMillis())
+                }
+            } catch (ex: IOException) {
+                Timber.w(ex, "Failed to update alert cache")
+            }
+        }
+    }
+
+    /**
+     * Reads the cached details of an alert in the background.
+     * @param callback Called on the main thread, with null if the alert is not cached
+     */
+    fun loadDetails(id: String, callback: (Alert?) -> Unit) {
+        executor.execute {
+            val alert = readDetails(id)
+            mainHandler.post { callback(alert) }
+        }
+    }
+
+    /**
+     * Replaces the cached details of an alert in the background
+     */
+    fun saveDetails(alert: Alert) {
+        executor.execute { writeDetails(alert) }
+    }
+
+    @WorkerThread
+    fun read(): Entry? = read(file)
+
+    @WorkerThread
+    fun write(entry: Entry) = write(file, entry)
+
+    @WorkerThread
+    fun readDetails(id: String): Alert? =
+        read(getDetailsFile(detailsDirectory, id))?.todayAlerts?.firstOrNull()
+
+    @WorkerThread
+    fun writeDetails(alert: Alert) {
+        val detailsDirectory = detailsDirectory
+        if (!detailsDirectory.exists() && !detailsDirectory.mkdirs()) {
+            Timber.w("Failed to create alert details cache directory")
+            return
+        }
+        val entry = Entry(System.currentTimeMillis(), listOf(alert), emptyList())
+        write(getDetailsFile(detailsDirectory, alert.id), entry)
+
+        val detailFiles = detailsDirectory.listFiles() ?: return
+        if (detailFiles.size > MAX_DETAIL_FILES) {
+            detailFiles
+                .sortedByDescending { it.lastModified() }
+                .drop(MAX_DETAIL_FILES)
+                .forEach { it.delete() }
+        }
+    }
+
+    private fun getDetailsFile(detailsDirectory: File, id: String): File {
+        // Alert IDs are not guaranteed to be valid file names
+        val fileName = id.replace(Regex("[^A-Za-z0-9_-]"), "_")
+        return File(detailsDirectory, "$fileName.bin")
+    }
+
+    private fun read(file: File): Entry? {
+        if (!file.exists()) return null
+
+        return try {
+            DataInputStream(BufferedInputStream(FileInputStream(file))).use { input ->
+                if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION) {
+                    return null
+                }
+                val savedAt = input.readLong()
+                val routes = readRoutes(input)
+                val todayAlerts = readAlerts(input, routes)
+                val futureAlerts = readAlerts(input, routes)
+                Entry(savedAt, todayAlerts, futureAlerts)
+            }
+        } catch (ex: Exception) {
+            // A corrupt cache file is not a problem, the network response will replace it
+            Timber.w(ex, "Failed to read alert cache")
+            null
+        }
+    }
+
+    private fun write(file: File, entry: Entry) {
+        // Writing to a temporary file first, so that a crash never leaves a half-written cache
+        val tempFile = File(file.path + ".tmp")
+        try {
+            DataOutputStream(BufferedOutputStream(FileOutputStream(tempFile))).use { output ->
+                output.writeInt(MAGIC)
+                output.writeInt(FORMAT_VERSION)
+                output.writeLong(entry.savedAt)
+
+                // The same route is affected by many alerts, each route is written only once
+                val routeIndexes = LinkedHashMap<Route, Int>()
+                (entry.todayAlerts + entry.futureAlerts)
+                    .flatMap { it.affectedRoutes }
+                    .forEach { routeIndexes.getOrPut(it) { routeIndexes.size } }
+
+                writeRoutes(output, routeIndexes.keys)
+                writeAlerts(output, entry.todayAlerts, routeIndexes)
+                writeAlerts(output, entry.futureAlerts, routeIndexes)
+            }
+            if (!tempFile.renameTo(file)) {
+                Timber.w("Failed to replace alert cache file")
+                tempFile.delete()
+            }
+        } catch (ex: IOException) {
+            Timber.w(ex, "Failed to write alert cache")
+            tempFile.delete()
+        }
+    }
+
+    private fun writeRoutes(output: DataOutputStream, routes: Collection<Route>) {
+        output.writeInt(routes.size)
+        for (route in routes) {
+            writeString(output, route.id)
+            writeNullableString(output, route.shortName)
+            writeNullableString(output, route.longName)
+            writeNullableString(output, route.description)
+            output.writeUTF(route.type.name)
+            output.writeInt(route.color)
+            output.writeInt(route.textColor)
+            output.writeBoolean(route.discontinued)
+        }
+    }
+
+    private fun readRoutes(input: DataInputStream): List<Route> {
+        val count = input.readInt()
+        val routes = ArrayList<Route>(count)
+        repeat(count) {
+            routes.add(
+                Route(
+                    id = readString(input),
+                    shortName = readNullableString(input),
+                    longName = readNullableString(input),
+                    description = readNullableString(input),
+                    type = parseRouteType(input.readUTF()),
+                    color = input.readInt(),
+                    textColor = input.readInt(),
+                    discontinued = input.readBoolean()
+                )
+            )
+        }
+        return routes
+    }
+
+    private fun writeAlerts(
+        output: DataOutputStream,
+        alerts: List<Alert>,
+        routeIndexes: Map<Route, Int>
+    ) {
+        output.writeInt(alerts.size)
+        for (alert in alerts) {
+            writeString(output, alert.id)
+            output.writeLong(alert.start)
+            output.writeLong(alert.end)
+            output.writeLong(alert.timestamp)
+            writeNullableString(output, alert.url)
+            writeNullableString(output, alert.header)
+            writeNullableString(output, alert.description)
+            output.writeInt(alert.affectedRoutes.size)
+            alert.affectedRoutes.forEach { output.writeInt(routeIndexes.getValue(it)) }
+            output.writeBoolean(alert.isPartial)
+        }
+    }
+
+    private fun readAlerts(input: DataInputStream, routes: List<Route>): List<Alert> {
+        val count = input.readInt()
+        val alerts = ArrayList<Alert>(count)
+        repeat(count) {
+            val id = readString(input)
+            val start = input.readLong()
+            val end = input.readLong()
+            val timestamp = input.readLong()
+            val url = readNullableString(input)
+            val header = readNullableString(input)
+            val description = readNullableString(input)
+            val routeCount = input.readInt()
+            val affectedRoutes = ArrayList<Route>(routeCount)
+            repeat(routeCount) { affectedRoutes.add(routes[input.readInt()]) }
+            val isPartial = input.readBoolean()
+
+            alerts.add(
+                Alert(id, start, end, timestamp, url, header, description, affectedRoutes, isPartial)
+            )
+        }
+        return alerts
+    }
+
+    /**
+     * DataOutputStream.writeUTF() is limited to 64 KB, which is not enough for long HTML
+     * descriptions
+     */
+    private fun writeString(output: DataOutputStream, value: String) {
+        val bytes = value.toByteArray(Charsets.UTF_8)
+        output.writeInt(bytes.size)
+        output.write(bytes)
+    }
+
+    private fun readString(input: DataInputStream): String {
+        val bytes = ByteArray(input.readInt())
+        input.readFully(bytes)
+        return String(bytes, Charsets.UTF_8)
+    }
+
+    private fun writeNullableString(output: DataOutputStream, value: String?) {
+        output.writeBoolean(value != null)
+        if (value != null) writeString(output, value)
+    }
+
+    private fun readNullableString(input: DataInputStream): String? {
+        return if (input.readBoolean()) readString(input) else null
+    }
+
+    private fun parseRouteType(name: String): RouteType {
+        return try {
+            RouteType.valueOf(name)
+        } catch (ex: IllegalArgumentException) {
+            RouteType.OTHER
+        }
+    }
+}
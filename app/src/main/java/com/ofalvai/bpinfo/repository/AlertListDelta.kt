@@ -0,0 +1,42 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.repository
+
+import com.ofalvai.bpinfo.model.Alert
+
+/**
+ * Changes of the alert lists between two updates. Alerts are matched by [Alert.id], and an alert
+ * is modified if its [Alert.timestamp] changed.
+ */
+class AlertListDelta(
+    val added: List<Alert>,
+    val removed: List<Alert>,
+    val modified: List<Alert>,
+
+    /**
+     * Unmodified alerts that moved between the today and future lists (eg. because they started)
+     */
+    val moved: List<Alert>
+) {
+
+    fun isEmpty() = added.isEmpty() && removed.isEmpty() && modified.isEmpty() && moved.isEmpty()
+
+    override fun toString(): String {
+        return "added: ${added.size}, removed: ${removed.size}, " +
+            "modified: ${modified.size}, moved: ${moved.size}"
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.repository
+
+import androidx.annotation.WorkerThread
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.util.newSerialExecutor
+import java.text.Normalizer
+import java.util.*
+import java.util.concurrent.Callable
+
+/**
+ * Inverted index of the words in the alerts' header, description (without HTML tags) and
+ * affected route names, for full-text search.
+ *
+ * The index is updated incrementally: only the alerts of an [AlertListDelta] are tokenized again.
+ * Updates and searches run on a single background thread in the order they were called, so a
+ * search sees every update made before it.
+ */
+class AlertSearchIndex {
+
+    companion object {
+        private val HTML_TAG_PATTERN = "<[^>]*>|&#?[a-zA-Z0-9]+;".toRegex()
+        private val COMBINING_MARK_PATTERN = "\\p{Mn}+".toRegex()
+        private val WORD_SEPARATOR_PATTERN = "[^\\p{L}\\p{N}]+".toRegex()
+
+        /**
+         * Splits the text into lowercase words without accents, so that "potlo" finds "pótló"
+         */
+        fun tokenize(text: String): List<String> {
+            val normalized = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFD)
+                .replace(COMBINING_MARK_PATTERN, "")
+            return normalized.split(WORD_SEPARATOR_PATTERN).filter { it.isNotEmpty() }
+        }
+    }
+
+    private val executor = newSerialExecutor("AlertSearchIndex")
+
+    /**
+     * Alert IDs by word, sorted to find the words starting with a prefix
+     */
+    private val idsByWord = TreeMap<String, MutableSet<String>>()
+
+    /**
+     * Indexed words by alert ID, to remove an alert from the index
+     */
+    private val wordsById = HashMap<String, Set<String>>()
+
+    fun update(delta: AlertListDelta) {
+        if (delta.added.isEmpty() && delta.removed.isEmpty() && delta.modified.isEmpty()) return
+
+        executor.execute {
+            delta.removed.forEach { remove(it.id) }
+            delta.added.forEach { add(it) }
+            delta.modified.forEach { add(it) }
+        }
+    }
+
+    /**
+     * Indexes the alert again, eg. when its description is loaded
+     */
+    fun update(alert: Alert) {
+        executor.execute { add(alert) }
+    }
+
+    /**
+     * Waits for the pending updates, so it must not be called on the main thread.
+     * @return IDs of alerts containing a word starting with each word of the query
+     */
+    @WorkerThread
+    fun search(query: String): Set<String> {
+        val queryWords = tokenize(query)
+        if (queryWords.isEmpty()) return emptySet()
+
+        return executor.submit(Callable { find(queryWords) }).get()
+    }
+
+    private fun find(queryWords: List<String>): Set<String> {
+        var result: MutableSet<String>? = null
+        for (queryWord in queryWords) {
+            val matchingIds = HashSet<String>()
+            idsByWord.subMap(queryWord, queryWord + Char.MAX_VALUE).values.forEach {
+                matchingIds.addAll(it)
+            }
+
+            result = result?.apply { retainAll(matchingIds) } ?: matchingIds
+            if (result.isEmpty()) break
+        }
+        return result ?: emptySet()
+    }
+
+    private fun add(alert: Alert) {
+        remove(alert.id)
+
+        val words = HashSet<String>()
+        alert.header?.let { words.addAll(tokenize(it)) }
+        alert.description?.let { words.addAll(tokenize(it.replace(HTML_TAG_PATTERN, " "))) }
+        for (route in alert.affectedRoutes) {
+            route.shortName?.let { words.addAll(tokenize(it)) }
+            route.longName?.let { words.addAll(tokenize(it)) }
+        }
+
+        wordsById[alert.id] = words
+        words.forEach { idsByWord.getOrPut(it) { HashSet() }.add(alert.id) }
+    }
+
+    private fun remove(id: String) {
+        val words = wordsById.remove(id) ?: return
+        for (word in words) {
+            val ids = idsByWord[word] ?: continue
+            ids.remove(id)
+            if (ids.isEmpty()) idsByWord.remove(word)
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.repository
+
+import androidx.annotation.WorkerThread
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.ui.alertlist.AlertListType
+import java.util.*
+
+/**
+ * In-memory store of the current alert lists, indexed by alert ID and by the words of the alerts
+ * (see [AlertSearchIndex]).
+ *
+ * Indexes are rebuilt on every [update] into an immutable snapshot, so queries are safe from any
+ * thread and never see a half-updated store.
+ */
+class AlertStore {
+
+    private class Snapshot(todayAlerts: List<Alert>, futureAlerts: List<Alert>) {
+        val alertsById = HashMap<String, Alert>()
+
+        /**
+         * For detecting alerts moved between the lists
+         */
+        val listTypesById = HashMap<String, AlertListType>()
+
+        init {
+            index(todayAlerts, AlertListType.Today)
+            index(futureAlerts, AlertListType.Future)
+        }
+
+        private fun index(alerts: List<Alert>, listType: AlertListType) {
+            for (alert in alerts) {
+                alertsById[alert.id] = alert
+                listTypesById[alert.id] = listType
+            }
+        }
+    }
+
+    @Volatile
+    private var snapshot = Snapshot(emptyList(), emptyList())
+
+    private val searchIndex = AlertSearchIndex()
+
+    /**
+     * Full details of alerts that are partial in the alert lists
+     */
+    @Volatile
+    private var details: Map<String, Alert> = emptyMap()
+
+    /**
+     * Replaces the stored alert lists. Previously stored alert details are kept if the alert
+     * hasn't been modified since.
+     * @return Changes compared to the previously stored alert lists
+     */
+    fun update(todayAlerts: List<Alert>, futureAlerts: List<Alert>): AlertListDelta {
+        val oldSnapshot = snapshot
+        val newSnapshot = Snapshot(todayAlerts, futureAlerts)
+
+        val previousDetails = details
+        val newDetails = HashMap<String, Alert>()
+        for ((id, detailed) in previousDetails) {
+            if (newSnapshot.alertsById[id]?.timestamp == detailed.timestamp) {
+                newDetails[id] = detailed
+            }
+        }
+
+        snapshot = newSnapshot
+        details = newDetails
+
+        val delta = computeDelta(oldSnapshot, newSnapshot)
+        searchIndex.update(delta)
+        return delta
+    }
+
+    private fun computeDelta(oldSnapshot: Snapshot, newSnapshot: Snapshot): AlertListDelta {
+        val added = ArrayList<Alert>()
+        val modified = ArrayList<Alert>()
+        val moved = ArrayList<Alert>()
+        for ((id, alert) in newSnapshot.alertsById) {
+            val oldAlert = oldSnapshot.alertsById[id]
+            when {
+                oldAlert == null -> added.add(alert)
+                oldAlert.timestamp != alert.timestamp -> modified.add(alert)
+                oldSnapshot.listTypesById[id] != newSnapshot.listTypesById[id] -> moved.add(alert)
+            }
+        }
+
+        val removed = oldSnapshot.alertsById.values.filter {
+            !newSnapshot.alertsById.containsKey(it.id)
+        }
+
+        return AlertListDelta(added, removed, modified, moved)
+    }
+
+    /**
+     * Stores the full details of an alert that was partial in the alert list
+     */
+    fun putDetails(alert: Alert) {
+        details = HashMap(details).apply { put(alert.id, alert) }
+        searchIndex.update(alert)
+    }
+
+    /**
+     * @return The alert with full details if they are known, otherwise the alert from the list
+     */
+    fun getAlert(id: String): Alert? {
+        return details[id] ?: snapshot.alertsById[id]
+    }
+
+    /**
+     * Full-text search in the stored alerts, must not be called on the main thread
+     * @return IDs of the matching alerts
+     */
+    @WorkerThread
+    fun search(query: String): Set<String> = searchIndex.search(query)
+}
@@ -17,18 +17,21 @@
 package com.ofalvai.bpinfo.repository
 
 import android.content.Context
-import androidx.lifecycle.LiveData
 import androidx.lifecycle.MutableLiveData
 import com.android.volley.NoConnectionError
+import com.android.volley.ParseError
 import com.android.volley.VolleyError
 import com.ofalvai.bpinfo.Config
 import com.ofalvai.bpinfo.api.AlertApiClient
+import com.ofalvai.bpinfo.api.awaitAlert
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.model.Resource
 import com.ofalvai.bpinfo.model.Status
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
 import com.ofalvai.bpinfo.util.Analytics
 import com.ofalvai.bpinfo.util.hasNetworkConnection
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.withContext
 import org.json.JSONException
 import org.threeten.bp.Duration
 import org.threeten.bp.LocalDateTime
@@ -37,11 +40,20 @@ import timber.log.Timber
 /**
  * Repository that is responsible for loading the 2 kinds of alert lists. It calls the currently
  * selected implementation of [AlertApiClient], handles caching, error handling, network detection.
+ *
+ * On the first fetch, the alert lists persisted by [AlertCache] are displayed until the network
+ * request finishes (stale-while-revalidate).
+ *
+ * Fetched alerts are also put into [AlertStore] for indexed queries.
+ * Fetched alert details are persisted by [AlertCache], so that alerts of notifications can be
+ * displayed before the alert list is loaded.
  */
 class AlertsRepository(
     private val alertApiClient: AlertApiClient,
     private val appContext: Context,
-    private val analytics: Analytics
+    private val analytics: Analytics,
+    private val alertCache: AlertCache,
+    private val alertStore: AlertStore
 ) {
 
     sealed class Error {
@@ -60,7 +72,16 @@ class AlertsRepository(
     private var lastUpdate: LocalDateTime? = null
     private val refreshThreshold = Duration.ofSeconds(Config.Behavior.REFRESH_THRESHOLD_SEC.toLong())
 
+    private var isCacheRequested = false
+
+    /**
+     * The persisted alert lists, if they have been displayed
+     */
+    private var displayedCacheEntry: AlertCache.Entry? = null
+
     fun fetchAlerts() {
+        loadCachedAlerts()
+
         if (shouldUpdate().not()) {
             if (status.value != Status.Loading) {
                 status.value = Status.Success
@@ -80,15 +101,28 @@ class AlertsRepository(
             override fun onAlertListResponse(todayAlerts: List<Alert>, futureAlerts: List<Alert>) {
                 lastUpdate = LocalDateTime.now()
 
+                val delta = alertStore.update(todayAlerts, futureAlerts)
+                Timber.d("Alert list delta: %s", delta)
                 this@AlertsRepository.todayAlerts.value = todayAlerts
                 this@AlertsRepository.futureAlerts.value = futureAlerts
                 status.value = Status.Success
+
+                if (delta.isEmpty()) {
+                    alertCache.touch()
+                } else {
+                    alertCache.save(todayAlerts, futureAlerts)
+                }
             }
 
             override fun onError(ex: Exception) {
                 Timber.e(ex.toString())
                 status.value = Status.Error
                 when (ex) {
+                    is ParseError -> {
+                        // The response arrived, but its content is unexpected
+                        this@AlertsRepository.error.value = Error.DataError
+                        analytics.logException(ex)
+                    }
                     is VolleyError -> this@AlertsRepository.error.value = Error.NetworkError(ex)
                     is JSONException -> {
                         this@AlertsRepository.error.value = Error.DataError
@@ -103,23 +137,97 @@ class AlertsRepository(
         })
     }
 
-    fun fetchAlert(id: String, alertListType: AlertListType): LiveData<Resource<Alert>> {
-        val liveData = MutableLiveData<Resource<Alert>>()
-        liveData.value = Resource.Loading()
+    /**
+     * Fetches the details of an alert, unless they are already in [AlertStore].
+     * Cancelling the calling coroutine cancels the request too.
+     * @param refresh Fetches the details even if they are already known, eg. to revalidate the
+     * cached details of an alert
+     */
+    suspend fun fetchAlert(
+        id: String,
+        alertListType: AlertListType,
+        refresh: Boolean = false
+    ): Alert {
+        val storedAlert = alertStore.getAlert(id)
+        if (!refresh && storedAlert != null && !storedAlert.isPartial) {
+            return storedAlert
+        }
 
-        alertApiClient.fetchAlert(id, alertListType, object : AlertApiClient.AlertDetailCallback {
-            override fun onAlertResponse(alert: Alert) {
-                liveData.value = Resource.Success(alert)
-            }
+        try {
+            val alert = alertApiClient.awaitAlert(id, alertListType)
+            alertStore.putDetails(alert)
+            alertCache.saveDetails(alert)
+            return alert
+        } catch (ex: CancellationException) {
+            throw ex
+        } catch (ex: Exception) {
+            Timber.e(ex)
+            analytics.logException(ex)
+            throw ex
+        }
+    }
 
-            override fun onError(ex: Exception) {
-                Timber.e(ex)
-                analytics.logException(ex)
-                liveData.value = Resource.Error(ex)
+    /**
+     * Fetches the details of an alert and persists them, without error handling. Used for
+     * prefetching the alert of a notification in the background.
+     */
+    suspend fun prefetchAlert(id: String) = withContext(Dispatchers.Main) {
+        // The alert list type is not known yet, but none of the API clients need it
+        val alert = alertApiClient.awaitAlert(id, AlertListType.Today)
+        alertStore.putDetails(alert)
+        alertCache.saveDetails(alert)
+    }
+
+    /**
+     * Looks up the details of an alert in [AlertStore], then in the persisted alert details.
+     * @param callback Called on the main thread, with null if the details are not known
+     */
+    fun loadCachedAlert(id: String, callback: (Alert?) -> Unit) {
+        val storedAlert = alertStore.getAlert(id)
+        if (storedAlert != null && !storedAlert.isPartial) {
+            callback(storedAlert)
+            return
+        }
+
+        alertCache.loadDetails(id) { cachedAlert ->
+            // The details might have been fetched in the meantime
+            val currentAlert = alertStore.getAlert(id)
+            if (currentAlert != null && !currentAlert.isPartial) {
+                callback(currentAlert)
+            } else {
+                cachedAlert?.let { alertStore.putDetails(it) }
+                callback(cachedAlert)
             }
-        })
+        }
+    }
+
+    /**
+     * @return True if the list is one of the persisted alert lists, not a network response
+     */
+    fun isCachedList(alerts: List<Alert>): Boolean {
+        val entry = displayedCacheEntry ?: return false
+        return alerts === entry.todayAlerts || alerts === entry.futureAlerts
+    }
 
-        return liveData
+    /**
+     * Displays the persisted alert lists once per process, unless the network response arrives
+     * first.
+     */
+    private fun loadCachedAlerts() {
+        if (isCacheRequested) return
+        isCacheRequested = true
+
+        alertCache.load { entry ->
+            val age = Duration.ofMillis(System.currentTimeMillis() - entry.savedAt)
+            val maxAge = Duration.ofHours(Config.Behavior.ALERT_CACHE_MAX_AGE_HOURS.toLong())
+            if (lastUpdate == null && age < maxAge) {
+                Timber.d("Displaying cached alerts, age: %s", age)
+                displayedCacheEntry = entry
+                alertStore.update(entry.todayAlerts, entry.futureAlerts)
+                todayAlerts.value = entry.todayAlerts
+                futureAlerts.value = entry.futureAlerts
+            }
+        }
     }
 
     private fun shouldUpdate(): Boolean {
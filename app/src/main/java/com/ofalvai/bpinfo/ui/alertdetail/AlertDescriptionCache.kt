@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.ui.alertdetail
+
+import android.content.SharedPreferences
+import android.text.Spanned
+import android.util.LruCache
+import androidx.annotation.WorkerThread
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.util.LocaleManager
+import com.ofalvai.bpinfo.util.newSerialExecutor
+import org.sufficientlysecure.htmltextview.HtmlFormatter
+import org.sufficientlysecure.htmltextview.HtmlFormatterBuilder
+import timber.log.Timber
+
+/**
+ * Alert descriptions rendered from HTML into Spanned text, so that opening the alert detail screen
+ * doesn't have to parse HTML on the main thread.
+ * Rendered descriptions are keyed by the alert's ID and timestamp and the current language.
+ */
+class AlertDescriptionCache(private val sharedPreferences: SharedPreferences) {
+
+    companion object {
+        private const val MAX_SIZE = 32
+    }
+
+    private val cache = LruCache<String, Spanned>(MAX_SIZE)
+
+    private val executor = newSerialExecutor("AlertDescriptionCache")
+
+    /**
+     * @return The rendered description if it's already in the cache
+     */
+    fun get(alert: Alert): Spanned? = cache.get(getKey(alert))
+
+    /**
+     * Renders the descriptions of the alerts in the background, eg. the alerts visible in the list
+     */
+    fun prefetch(alerts: List<Alert>) {
+        val missingAlerts = alerts.filter { it.description != null && get(it) == null }
+        if (missingAlerts.isEmpty()) return
+
+        executor.execute {
+            missingAlerts.forEach { render(it) }
+        }
+    }
+
+    /**
+     * Returns the rendered description from the cache, or renders it on the calling thread
+     * @return null if the alert has no description or it can't be rendered
+     */
+    @WorkerThread
+    fun render(alert: Alert): Spanned? {
+        val description = alert.description ?: return null
+        val key = getKey(alert)
+        cache.get(key)?.let { return it }
+
+        return try {
+            val rendered = HtmlFormatter.formatHtml(HtmlFormatterBuilder().setHtml(description))
+            cache.put(key, rendered)
+            rendered
+        } catch (t: Throwable) {
+            Timber.e(t, "Failed to parse alert description HTML")
+            null
+        }
+    }
+
+    private fun getKey(alert: Alert): String {
+        val languageCode = LocaleManager.getCurrentLanguageCode(sharedPreferences)
+        return "${alert.id}|$languageCode|${alert.timestamp}"
+    }
+}
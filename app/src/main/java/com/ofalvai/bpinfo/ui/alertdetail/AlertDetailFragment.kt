@@ -23,6 +23,7 @@ import android.animation.ValueAnimator
 import android.graphics.Paint
 import android.net.Uri
 import android.os.Bundle
+import android.text.Spanned
 import android.view.LayoutInflater
 import android.view.View
 import android.view.ViewGroup
@@ -36,13 +37,14 @@ import com.google.android.material.bottomsheet.BottomSheetDialogFragment
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.model.Alert
 import com.ofalvai.bpinfo.model.Resource
-import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.repository.AlertStore
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
+import com.ofalvai.bpinfo.ui.view.RouteStripView
 import com.ofalvai.bpinfo.util.*
-import com.wefika.flowlayout.FlowLayout
 import org.koin.android.ext.android.inject
 import org.koin.androidx.viewmodel.ext.android.viewModel
 import org.sufficientlysecure.htmltextview.HtmlTextView
+import org.sufficientlysecure.htmltextview.LocalLinkMovementMethod
 import timber.log.Timber
 
 class AlertDetailFragment : BottomSheetDialogFragment() {
@@ -51,14 +53,27 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
 
         const val FRAGMENT_TAG = "alert_detail"
 
-        private const val ARG_ALERT_OBJECT = "alert_object"
+        private const val ARG_ALERT_ID = "alert_id"
         private const val ARG_LIST_TYPE = "alert_list_type"
-
-        fun newInstance(alert: Alert, alertListType: AlertListType): AlertDetailFragment {
+        private const val ARG_REVALIDATE = "revalidate"
+
+        private const val KEY_ALERT = "alert"
+
+        /**
+         * Only the ID of the alert is passed, the alert is looked up in [AlertStore]
+         * @param revalidate The details in the store come from a cache, they are fetched again
+         * after being displayed
+         */
+        fun newInstance(
+            alertId: String,
+            alertListType: AlertListType,
+            revalidate: Boolean = false
+        ): AlertDetailFragment {
             val fragment = AlertDetailFragment()
             val args = bundleOf(
-                ARG_ALERT_OBJECT to alert,
-                ARG_LIST_TYPE to alertListType
+                ARG_ALERT_ID to alertId,
+                ARG_LIST_TYPE to alertListType,
+                ARG_REVALIDATE to revalidate
             )
             fragment.arguments = args
             return fragment
@@ -73,17 +88,13 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
 
     private val analytics: Analytics by inject()
 
-    /**
-     * List of currently displayed route icons. This list is needed in order to find visually
-     * duplicate route data, and not to display them twice.
-     */
-    private val displayedRoutes = mutableListOf<Route>()
+    private val alertStore: AlertStore by inject()
 
     private val titleTextView: TextView by bindView(R.id.alert_detail_title)
 
     private val dateTextView: TextView by bindView(R.id.alert_detail_date)
 
-    private val routeIconsLayout: FlowLayout by bindView(R.id.alert_detail_route_icons_wrapper)
+    private val routeStripView: RouteStripView by bindView(R.id.alert_detail_route_icons_wrapper)
 
     private val descriptionTextView: HtmlTextView by bindView(R.id.alert_detail_description)
 
@@ -100,20 +111,19 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
 
-        if (arguments != null) {
-            alertWithDetails = arguments?.getSerializable(ARG_ALERT_OBJECT) as Alert
-            alertListType = arguments?.getSerializable(ARG_LIST_TYPE) as AlertListType
-        }
+        val args = requireArguments()
+        alertListType = args.getSerializable(ARG_LIST_TYPE) as AlertListType
 
-        if (savedInstanceState != null) {
-             alertWithDetails = savedInstanceState.getSerializable(ARG_ALERT_OBJECT) as Alert
-        }
+        // The store also contains the details loaded by this screen. The saved alert is only
+        // needed after process death, when the store is empty.
+        alertWithDetails = args.getString(ARG_ALERT_ID)?.let { alertStore.getAlert(it) }
+            ?: savedInstanceState?.getParcelable<ParcelableAlert>(KEY_ALERT)?.alert
 
         analytics.logAlertContentView(alertWithDetails)
     }
 
     override fun onSaveInstanceState(outState: Bundle) {
-        outState.putSerializable(ARG_ALERT_OBJECT, alertWithDetails)
+        alertWithDetails?.let { outState.putParcelable(KEY_ALERT, ParcelableAlert(it)) }
         super.onSaveInstanceState(outState)
     }
 
@@ -125,27 +135,46 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
     override fun onViewCreated(view: View, savedInstanceState: Bundle?) {
         super.onViewCreated(view, savedInstanceState)
 
+        if (alertWithDetails == null) {
+            Timber.w("Alert detail: alert not found")
+            dismiss()
+            return
+        }
+
         displayAlert(alertWithDetails)
 
         alertWithDetails?.let {
             if (!it.isPartial) {
                 progressBar.hide()
+                if (requireArguments().getBoolean(ARG_REVALIDATE) && viewModel.alert.value == null) {
+                    viewModel.refreshAlert(it.id, alertListType)
+                }
+            } else if (viewModel.alert.value == null) {
+                viewModel.loadAlert(it.id, alertListType)
             }
         }
 
-        errorButton.setOnClickListener {
-            alertWithDetails?.id?.let {
-                val alertLiveData = viewModel.reloadAlert(it, alertListType)
-                observe(alertLiveData) { resource ->
-                    when (resource) {
-                        is Resource.Success -> updateAlert(resource.value)
-                        is Resource.Loading -> {
-                            errorLayout.visibility = View.GONE
-                            progressBar.show()
-                        }
-                        is Resource.Error -> onAlertUpdateFailed()
+        observe(viewModel.alert) { resource ->
+            when (resource) {
+                is Resource.Success -> {
+                    // The result is delivered again after a configuration change
+                    if (resource.value != alertWithDetails) {
+                        updateAlert(resource.value)
                     }
                 }
+                is Resource.Loading -> {
+                    errorLayout.visibility = View.GONE
+                    progressBar.show()
+                }
+                is Resource.Error -> onAlertUpdateFailed()
+            }
+        }
+
+        observe(viewModel.description, this::displayDescription)
+
+        errorButton.setOnClickListener {
+            alertWithDetails?.id?.let {
+                viewModel.loadAlert(it, alertListType)
             }
         }
     }
@@ -159,10 +188,8 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
         dialog?.window?.setLayout(actualWidth, ViewGroup.LayoutParams.MATCH_PARENT)
     }
 
-    fun updateAlert(alert: Alert) {
+    private fun updateAlert(alert: Alert) {
         this.alertWithDetails = alert
-        displayedRoutes.clear()
-        routeIconsLayout.removeAllViews()
 
         // Updating views
         displayAlert(alert)
@@ -210,13 +237,32 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
         animatorSet.start()
     }
 
-    fun onAlertUpdateFailed() {
+    private fun onAlertUpdateFailed() {
         progressBar.hide()
         errorMessage.setText(R.string.error_alert_detail_load)
         errorButton.setText(R.string.label_retry)
         errorLayout.visibility = View.VISIBLE
     }
 
+    private fun displayDescription(description: Spanned?) {
+        if (description != null) {
+            // The movement method makes TextView copy the text, the cached Spanned isn't modified
+            descriptionTextView.movementMethod = LocalLinkMovementMethod.getInstance()
+            descriptionTextView.text = description
+            return
+        }
+
+        // Rendering failed in the background, letting the view report the error
+        alertWithDetails?.description?.let {
+            try {
+                descriptionTextView.setHtml(it)
+            } catch (t: Throwable) {
+                analytics.logException(t)
+                Timber.e(t, "Failed to parse alert description HTML")
+            }
+        }
+    }
+
     private fun displayAlert(alert: Alert?) {
         if (alert == null) return
 
@@ -226,23 +272,11 @@ class AlertDetailFragment : BottomSheetDialogFragment() {
         dateTextView.text = dateString
 
         // There are alerts without affected routes, eg. announcements
-        for (route in alert.affectedRoutes) {
-            // Some affected routes are visually identical to others in the list, no need
-            // to display them again.
-            if (!isRouteVisuallyDuplicate(route, displayedRoutes)) {
-                displayedRoutes.add(route)
-                addRouteIcon(requireContext(), routeIconsLayout, route)
-            }
-        }
+        // Visually identical routes are already left out of visibleRoutes
+        routeStripView.setRoutes(alert.visibleRoutes)
 
-        alert.description?.let {
-            try {
-                descriptionTextView.setHtml(it)
-            } catch (t: Throwable) {
-                analytics.logException(t)
-                Timber.e(t, "Failed to parse alert description HTML")
-            }
-        }
+        // The description is rendered from HTML on a background thread
+        viewModel.loadDescription(alert)
 
         if (alert.url == null) {
             urlTextView.visibility = View.GONE
@@ -16,19 +16,98 @@
 
 package com.ofalvai.bpinfo.ui.alertdetail
 
+import android.text.Spanned
 import androidx.lifecycle.LiveData
+import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.ViewModel
+import androidx.lifecycle.viewModelScope
 import com.ofalvai.bpinfo.model.Alert
 import com.ofalvai.bpinfo.model.Resource
-import com.ofalvai.bpinfo.ui.alertlist.AlertListType
 import com.ofalvai.bpinfo.repository.AlertsRepository
+import com.ofalvai.bpinfo.ui.alertlist.AlertListType
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withContext
+import timber.log.Timber
 
 class AlertDetailViewModel(
-    private val alertsRepository: AlertsRepository
+    private val alertsRepository: AlertsRepository,
+    private val descriptionCache: AlertDescriptionCache
 ) : ViewModel() {
 
-    fun reloadAlert(id: String, alertListType: AlertListType): LiveData<Resource<Alert>> {
-        return alertsRepository.fetchAlert(id, alertListType)
+    private val _alert = MutableLiveData<Resource<Alert>>()
+
+    /**
+     * Details of the displayed alert, only loaded if the alert from the list is partial
+     */
+    val alert: LiveData<Resource<Alert>> = _alert
+
+    private val _description = MutableLiveData<Spanned?>()
+
+    /**
+     * Rendered HTML description of the displayed alert
+     */
+    val description: LiveData<Spanned?> = _description
+
+    private var loadJob: Job? = null
+
+    private var descriptionJob: Job? = null
+
+    /**
+     * Loads the alert details in viewModelScope, so the request is cancelled when the alert detail
+     * screen is closed
+     */
+    fun loadAlert(id: String, alertListType: AlertListType) {
+        loadJob?.cancel()
+        _alert.value = Resource.Loading()
+
+        loadJob = viewModelScope.launch {
+            _alert.value = try {
+                Resource.Success(alertsRepository.fetchAlert(id, alertListType))
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Exception) {
+                Resource.Error(ex)
+            }
+        }
+    }
+
+    /**
+     * Fetches the details of an alert that is already displayed from a cache, without displaying
+     * the progress or errors. The result is only delivered if the request succeeds.
+     */
+    fun refreshAlert(id: String, alertListType: AlertListType) {
+        if (loadJob != null) return
+
+        loadJob = viewModelScope.launch {
+            try {
+                _alert.value = Resource.Success(
+                    alertsRepository.fetchAlert(id, alertListType, refresh = true)
+                )
+            } catch (ex: CancellationException) {
+                throw ex
+            } catch (ex: Exception) {
+                Timber.w(ex, "Failed to refresh alert %s", id)
+            }
+        }
     }
 
-}
\ No newline at end of file
+    /**
+     * Renders the description of the alert on a background thread, unless it's already cached
+     */
+    fun loadDescription(alert: Alert) {
+        descriptionJob?.cancel()
+
+        val cached = descriptionCache.get(alert)
+        if (cached != null || alert.description == null) {
+            _description.value = cached
+            return
+        }
+
+        descriptionJob = viewModelScope.launch {
+            _description.value = withContext(Dispatchers.Default) { descriptionCache.render(alert) }
+        }
+    }
+}
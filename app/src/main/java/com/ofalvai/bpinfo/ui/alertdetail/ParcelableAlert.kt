@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.ui.alertdetail
+
+import android.os.Parcel
+import android.os.Parcelable
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+
+/**
+ * Compact Parcelable form of an [Alert], written field by field instead of Java serialization.
+ * Only used to restore the alert detail screen after process death, when the alert is no longer
+ * in the AlertStore.
+ */
+class ParcelableAlert(val alert: Alert) : Parcelable {
+
+    companion object CREATOR : Parcelable.Creator<ParcelableAlert> {
+
+        override fun createFromParcel(parcel: Parcel): ParcelableAlert {
+            val id = parcel.readString()!!
+            val start = parcel.readLong()
+            val end = parcel.readLong()
+            val timestamp = parcel.readLong()
+            val url = parcel.readString()
+            val header = parcel.readString()
+            val description = parcel.readString()
+            val isPartial = parcel.readInt() != 0
+
+            val routeCount = parcel.readInt()
+            val routes = ArrayList<Route>(routeCount)
+            repeat(routeCount) { routes.add(readRoute(parcel)) }
+
+            val alert = Alert(id, start, end, timestamp, url, header, description, routes, isPartial)
+            return ParcelableAlert(alert)
+        }
+
+        override fun newArray(size: Int): Array<ParcelableAlert?> = arrayOfNulls(size)
+
+        private fun readRoute(parcel: Parcel): Route {
+            return Route(
+                parcel.readString()!!,
+                parcel.readString(),
+                parcel.readString(),
+                parcel.readString(),
+                RouteType.values()[parcel.readInt()],
+                parcel.readInt(),
+                parcel.readInt(),
+                parcel.readInt() != 0
+            )
+        }
+
+        private fun writeRoute(parcel: Parcel, route: Route) {
+            parcel.writeString(route.id)
+            parcel.writeString(route.shortName)
+            parcel.writeString(route.longName)
+            parcel.writeString(route.description)
+            parcel.writeInt(route.type.ordinal)
+            parcel.writeInt(route.color)
+            parcel.writeInt(route.textColor)
+            parcel.writeInt(if (route.discontinued) 1 else 0)
+        }
+    }
+
+    override fun writeToParcel(parcel: Parcel, flags: Int) {
+        parcel.writeString(alert.id)
+        parcel.writeLong(alert.start)
+        parcel.writeLong(alert.end)
+        parcel.writeLong(alert.timestamp)
+        parcel.writeString(alert.url)
+        parcel.writeString(alert.header)
+        parcel.writeString(alert.description)
+        parcel.writeInt(if (alert.isPartial) 1 else 0)
+
+        parcel.writeInt(alert.affectedRoutes.size)
+        alert.affectedRoutes.forEach { writeRoute(parcel, it) }
+    }
+
+    override fun describeContents() = 0
+}
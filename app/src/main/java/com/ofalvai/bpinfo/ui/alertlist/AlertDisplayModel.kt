@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.ui.alertlist
+
+import android.content.Context
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.util.formatDate
+import com.ofalvai.bpinfo.util.isRecent
+import com.ofalvai.bpinfo.util.recentUntil
+import org.threeten.bp.ZonedDateTime
+
+/**
+ * Everything an alert list item displays, computed in advance so that binding a list item
+ * doesn't have to format dates.
+ * The date text and the recent flag are relative to the time of creation, so the display models
+ * must be created again at [validUntil].
+ */
+data class AlertDisplayModel(
+    val alert: Alert,
+
+    val dateText: String,
+
+    /**
+     * Only alerts of the today list can be recent
+     */
+    val isRecent: Boolean,
+
+    /**
+     * Route badges, without the visually identical duplicates
+     */
+    val routes: List<Route>
+) {
+
+    companion object {
+
+        fun create(
+            context: Context,
+            alert: Alert,
+            alertListType: AlertListType,
+            now: ZonedDateTime
+        ): AlertDisplayModel {
+            return AlertDisplayModel(
+                alert,
+                alert.formatDate(context, now),
+                alertListType == AlertListType.Today && alert.isRecent(now),
+                alert.visibleRoutes
+            )
+        }
+
+        /**
+         * Returns the time when display models created at [now] become outdated: the next
+         * midnight (today/yesterday/tomorrow labels change) or the time the first recent alert
+         * stops being recent, whichever comes first.
+         */
+        fun validUntil(models: List<AlertDisplayModel>, now: ZonedDateTime): ZonedDateTime {
+            var validUntil = now.toLocalDate().plusDays(1).atStartOfDay(now.zone)
+            for (model in models) {
+                if (model.isRecent) {
+                    val recentUntil = model.alert.recentUntil()
+                    if (recentUntil.isBefore(validUntil)) validUntil = recentUntil
+                }
+            }
+            return validUntil
+        }
+    }
+}
@@ -19,10 +19,12 @@ package com.ofalvai.bpinfo.ui.alertlist
 import android.content.Intent
 import android.os.Bundle
 import androidx.appcompat.widget.Toolbar
+import androidx.recyclerview.widget.RecyclerView
 import androidx.viewpager.widget.ViewPager
 import com.google.android.material.tabs.TabLayout
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.notifications.NotificationMaker
+import com.ofalvai.bpinfo.ui.alertlist.adapter.AlertAdapter
 import com.ofalvai.bpinfo.ui.alertlist.adapter.AlertListPagerAdapter
 import com.ofalvai.bpinfo.ui.base.BaseActivity
 import com.ofalvai.bpinfo.util.Analytics
@@ -32,12 +34,32 @@ import org.koin.androidx.viewmodel.ext.android.viewModel
 
 class AlertListActivity : BaseActivity() {
 
+    companion object {
+        /**
+         * Number of alert list items kept for reuse by both tabs
+         */
+        private const val ALERT_VIEW_POOL_SIZE = 16
+
+        /**
+         * Number of alert list items inflated in advance, roughly one screen
+         */
+        const val ALERT_VIEW_POOL_PREFILL = 8
+    }
+
     /**
      * ID of an Alert after a notification launches the Activity.
      * This is later accessed by [AlertListFragment].
      */
     var pendingNavigationAlertId: String? = null
 
+    /**
+     * Alert list items are shared between the RecyclerViews of the tabs, so that switching tabs
+     * doesn't inflate a new set of items. It's prefilled by [AlertListFragment].
+     */
+    val alertViewPool = RecyclerView.RecycledViewPool().apply {
+        setMaxRecycledViews(AlertAdapter.VIEW_TYPE_ALERT, ALERT_VIEW_POOL_SIZE)
+    }
+
     private val viewModel by viewModel<AlertsViewModel>()
 
     private val viewPager: ViewPager by bindView(R.id.alert_list_pager)
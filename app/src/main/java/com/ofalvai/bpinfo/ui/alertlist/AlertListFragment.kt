@@ -18,24 +18,27 @@ package com.ofalvai.bpinfo.ui.alertlist
 
 import android.content.Intent
 import android.os.Bundle
+import android.os.Looper
 import android.view.*
 import android.widget.Button
 import android.widget.LinearLayout
 import android.widget.TextView
 import androidx.appcompat.app.AppCompatActivity
+import androidx.appcompat.widget.SearchView
 import androidx.core.text.HtmlCompat
 import androidx.fragment.app.Fragment
 import androidx.recyclerview.widget.DividerItemDecoration
 import androidx.recyclerview.widget.LinearLayoutManager
+import androidx.recyclerview.widget.RecyclerView
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout
 import com.android.volley.VolleyError
 import com.google.android.material.snackbar.Snackbar
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.model.Resource
 import com.ofalvai.bpinfo.model.RouteType
 import com.ofalvai.bpinfo.model.Status
 import com.ofalvai.bpinfo.repository.AlertsRepository
+import com.ofalvai.bpinfo.ui.alertdetail.AlertDescriptionCache
 import com.ofalvai.bpinfo.ui.alertdetail.AlertDetailFragment
 import com.ofalvai.bpinfo.ui.alertlist.adapter.AlertAdapter
 import com.ofalvai.bpinfo.ui.alertlist.dialog.AlertFilterFragment
@@ -69,6 +72,8 @@ class AlertListFragment : Fragment(), AlertFilterFragment.AlertFilterListener {
 
     private val analytics: Analytics by inject()
 
+    private val descriptionCache: AlertDescriptionCache by inject()
+
     private lateinit var alertAdapter: AlertAdapter
 
     private lateinit var alertListType: AlertListType
@@ -129,6 +134,8 @@ class AlertListFragment : Fragment(), AlertFilterFragment.AlertFilterListener {
 
     override fun onCreateOptionsMenu(menu: Menu, inflater: MenuInflater) {
         inflater.inflate(R.menu.menu_main, menu)
+
+        setupSearchView(menu.findItem(R.id.menu_item_search))
     }
 
     override fun onOptionsItemSelected(item: MenuItem): Boolean {
@@ -146,6 +153,7 @@ class AlertListFragment : Fragment(), AlertFilterFragment.AlertFilterListener {
         super.onStart()
         if (activity is AlertListActivity && alertListType == AlertListType.Today) {
             pendingNavigationAlertId = (requireActivity() as AlertListActivity).pendingNavigationAlertId
+            pendingNavigationAlertId?.let { displayCachedAlertDetail(it) }
         }
     }
 
@@ -179,43 +187,65 @@ class AlertListFragment : Fragment(), AlertFilterFragment.AlertFilterListener {
 
         observe(viewModel.noConnectionWarning) { displayNoNetworkWarning() }
 
+        observe(parentViewModel.searchQuery) { viewModel.searchQuery = it }
+
         if (alertListType == AlertListType.Today) {
             observe(parentViewModel.notice, this::displayNotice)
         }
     }
 
     private fun launchAlertDetail(alert: Alert) {
+        // AlertDetailFragment loads the details if the alert is partial
         displayAlertDetail(alert)
-
-        val alertLiveData = viewModel.fetchAlert(alert.id)
-        observe(alertLiveData) {
-            when (it) {
-                is Resource.Success -> updateAlertDetail(it.value)
-                is Resource.Error -> displayAlertDetailError()
-                is Resource.Loading -> { } // AlertDetailFragment handles its loading state
-            }
-        }
     }
 
-    private fun displayAlerts(alerts: List<Alert>) {
+    private fun displayAlerts(alerts: AlertListViewModel.DisplayedAlerts) {
         setErrorView(false, null)
 
-        alertAdapter.submitList(alerts)
+        alertAdapter.submitList(alerts.models) {
+            // Visible items are only known after the next layout
+            alertRecyclerView.post { prefetchVisibleDescriptions() }
+        }
 
         // Only update the toolbar if this fragment is currently selected in the ViewPager
         if (userVisibleHint) {
-            updateSubtitle(alerts.size)
+            updateSubtitle(alerts.models.size)
+        }
+        // Display models are also recreated when their dates become outdated, the alerts
+        // are the same in that case
+        if (alerts.isChanged) {
+            alertRecyclerView.smoothScrollToPosition(0)
         }
-        alertRecyclerView.smoothScrollToPosition(0)
 
         pendingNavigationAlertId?.let { id ->
-            val alert: Alert? = alerts.find { it.id == id }
+            val alert: Alert? = viewModel.findAlert(id)
             if (alert != null) {
                 launchAlertDetail(alert)
-            } else {
+                clearPendingNavigation()
+            } else if (!alerts.isFromCache) {
                 Timber.w("Pending alert navigation: no alert found for ID %s", id)
+                clearPendingNavigation()
             }
+            // The alert of a new notification might only be in the network response
+        }
+    }
+
+    /**
+     * Displays the alert of a notification without waiting for the alert list, if its details
+     * were prefetched when the notification arrived. The details are fetched again afterwards.
+     */
+    private fun displayCachedAlertDetail(id: String) {
+        viewModel.loadCachedAlert(id) { alert ->
+            if (alert == null || pendingNavigationAlertId != id) return@loadCachedAlert
+            if (!isAdded || parentFragmentManager.isStateSaved) return@loadCachedAlert
+
+            val alertDetailFragment = AlertDetailFragment.newInstance(id, alertListType, true)
+            alertDetailFragment.show(parentFragmentManager, AlertDetailFragment.FRAGMENT_TAG)
+            clearPendingNavigation()
         }
+    }
+
+    private fun clearPendingNavigation() {
         pendingNavigationAlertId = null
         if (activity is AlertListActivity && alertListType == AlertListType.Today) {
             (requireActivity() as AlertListActivity).pendingNavigationAlertId = null
@@ -265,45 +295,108 @@ class AlertListFragment : Fragment(), AlertFilterFragment.AlertFilterListener {
 
     /**
      * Displays the alert detail view.
-     * If the alert object contains all required information, there's no need to call
-     * updateAlertDetail() later, otherwise Alert.partial must be set to true.
-     * @param alert data from a list item
+     * If the alert object doesn't contain all required information (Alert.partial is true),
+     * AlertDetailFragment loads the details itself.
+     * @param alert data from a list item, AlertDetailFragment looks it up by its ID
      */
     private fun displayAlertDetail(alert: Alert) {
-        val alertDetailFragment = AlertDetailFragment.newInstance(alert, alertListType)
+        val alertDetailFragment = AlertDetailFragment.newInstance(alert.id, alertListType)
         alertDetailFragment.show(parentFragmentManager, AlertDetailFragment.FRAGMENT_TAG)
     }
 
-    /**
-     * Updates the alert detail view with the full alert data
-     * @param alert data coming from the alert detail API call
-     */
-    private fun updateAlertDetail(alert: Alert) {
-        val fragment = parentFragmentManager
-            .findFragmentByTag(AlertDetailFragment.FRAGMENT_TAG) as AlertDetailFragment?
-
-        fragment?.updateAlert(alert)
-    }
-
-    private fun displayAlertDetailError() {
-        val fragment = parentFragmentManager
-            .findFragmentByTag(AlertDetailFragment.FRAGMENT_TAG) as AlertDetailFragment?
-
-        fragment?.onAlertUpdateFailed()
-    }
-
     private fun setupRecyclerView() {
-        alertAdapter = AlertAdapter(alertListType) { launchAlertDetail(it) }
+        alertAdapter = AlertAdapter { launchAlertDetail(it) }
 
         alertRecyclerView.adapter = alertAdapter
 
         val layoutManager = LinearLayoutManager(activity)
         alertRecyclerView.layoutManager = layoutManager
 
+        (activity as? AlertListActivity)?.alertViewPool?.let { pool ->
+            alertRecyclerView.setRecycledViewPool(pool)
+            // Returning the items to the shared pool when this tab's view is destroyed
+            layoutManager.recycleChildrenOnDetach = true
+            prefillViewPool(pool)
+        }
+
         val decoration = DividerItemDecoration(context, layoutManager.orientation)
         alertRecyclerView.addItemDecoration(decoration)
 
         alertRecyclerView.setEmptyView(emptyView)
+
+        alertRecyclerView.addOnScrollListener(object : RecyclerView.OnScrollListener() {
+            override fun onScrollStateChanged(recyclerView: RecyclerView, newState: Int) {
+                if (newState == RecyclerView.SCROLL_STATE_IDLE) {
+                    prefetchVisibleDescriptions()
+                }
+            }
+        })
+    }
+
+    /**
+     * Inflates alert list items into the shared pool while the main thread is idle, one item at a
+     * time, so that the other tab can display its first screen without inflating items.
+     */
+    private fun prefillViewPool(pool: RecyclerView.RecycledViewPool) {
+        Looper.myQueue().addIdleHandler {
+            val viewType = AlertAdapter.VIEW_TYPE_ALERT
+            if (view == null ||
+                pool.getRecycledViewCount(viewType) >= AlertListActivity.ALERT_VIEW_POOL_PREFILL
+            ) {
+                return@addIdleHandler false
+            }
+
+            pool.putRecycledView(alertAdapter.createViewHolder(alertRecyclerView, viewType))
+            true
+        }
+    }
+
+    /**
+     * The search query is shared by the tabs, the SearchView of the previously selected tab's
+     * menu shows the same query.
+     */
+    private fun setupSearchView(searchItem: MenuItem) {
+        val searchView = searchItem.actionView as SearchView
+        searchView.queryHint = getString(R.string.search_hint)
+
+        val query = parentViewModel.searchQuery.value
+        if (!query.isNullOrEmpty()) {
+            searchItem.expandActionView()
+            searchView.setQuery(query, false)
+            searchView.clearFocus()
+        }
+
+        searchView.setOnQueryTextListener(object : SearchView.OnQueryTextListener {
+            override fun onQueryTextSubmit(query: String): Boolean {
+                searchView.clearFocus()
+                return true
+            }
+
+            override fun onQueryTextChange(newText: String): Boolean {
+                // The SearchView of the previous tab is cleared when its menu is removed
+                if (isMenuVisible) {
+                    parentViewModel.searchQuery.value = newText
+                }
+                return true
+            }
+        })
+    }
+
+    /**
+     * Renders the descriptions of the visible alerts in the background, so that the detail screen
+     * can display them without parsing HTML
+     */
+    private fun prefetchVisibleDescriptions() {
+        if (view == null) return
+
+        val layoutManager = alertRecyclerView.layoutManager as? LinearLayoutManager ?: return
+        val first = layoutManager.findFirstVisibleItemPosition()
+        val last = layoutManager.findLastVisibleItemPosition()
+        val items = alertAdapter.currentList
+        if (first == RecyclerView.NO_POSITION || first >= items.size) return
+
+        val visibleAlerts = items.subList(first, minOf(last + 1, items.size)).map { it.alert }
+        descriptionCache.prefetch(visibleAlerts)
     }
 
     private fun initRefresh() {
@@ -2,15 +2,24 @@ package com.ofalvai.bpinfo.ui.alertlist
 
 import android.content.Context
 import androidx.lifecycle.LiveData
+import androidx.lifecycle.MediatorLiveData
+import androidx.lifecycle.MutableLiveData
 import androidx.lifecycle.Transformations
 import androidx.lifecycle.ViewModel
+import androidx.lifecycle.liveData
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.model.Resource
 import com.ofalvai.bpinfo.model.RouteType
 import com.ofalvai.bpinfo.model.Status
+import com.ofalvai.bpinfo.repository.AlertStore
 import com.ofalvai.bpinfo.repository.AlertsRepository
 import com.ofalvai.bpinfo.util.SingleLiveEvent
 import com.ofalvai.bpinfo.util.hasNetworkConnection
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.withContext
+import org.threeten.bp.Duration
+import org.threeten.bp.ZonedDateTime
 
 /**
  * ViewModel of a tab (an alert list)
@@ -19,17 +28,111 @@ import com.ofalvai.bpinfo.util.hasNetworkConnection
 class AlertListViewModel(
         private val alertListType: AlertListType,
         private val alertsRepository: AlertsRepository,
+        private val alertStore: AlertStore,
         private val appContext: Context
 ) : ViewModel() {
 
-    val alerts: LiveData<List<Alert>> = Transformations.map(
-            when (alertListType) {
-                AlertListType.Today -> alertsRepository.todayAlerts
-                AlertListType.Future -> alertsRepository.futureAlerts
-            },
-            this::sortAndFilter
+    /**
+     * Input of the background pipeline below: the alert list of this tab, the active filter and
+     * the search query
+     */
+    private class ListQuery(
+        val alerts: List<Alert>,
+        val isFromCache: Boolean,
+        val filterMask: Int,
+        val searchQuery: String
     )
 
+    /**
+     * The last sorted list and its source, so that a filter change doesn't sort again
+     */
+    private class SortedList(val source: List<Alert>, val sorted: List<Alert>)
+
+    /**
+     * Display models of the alert list
+     * @param isChanged False if only the display models were recreated (eg. at midnight), or the
+     * new list contains the same alerts as the previous one
+     * @param isFromCache True if the alerts are the persisted ones, not yet a network response
+     */
+    class DisplayedAlerts(
+        val models: List<AlertDisplayModel>,
+        val isChanged: Boolean,
+        val isFromCache: Boolean
+    )
+
+    private val alertComparator = compareBy<Alert> { it.start }.thenBy { it.description }
+
+    /**
+     * Bitmask of the selected route types, 0 if there's no active filter
+     */
+    private val activeFilterMask = MutableLiveData<Int>(0)
+
+    private val activeSearchQuery = MutableLiveData<String>("")
+
+    private val listQuery = MediatorLiveData<ListQuery>().apply {
+        val source = when (alertListType) {
+            AlertListType.Today -> alertsRepository.todayAlerts
+            AlertListType.Future -> alertsRepository.futureAlerts
+        }
+        addSource(source) {
+            val alerts = it ?: emptyList()
+            value = ListQuery(
+                alerts,
+                alertsRepository.isCachedList(alerts),
+                activeFilterMask.value ?: 0,
+                activeSearchQuery.value ?: ""
+            )
+        }
+        addSource(activeFilterMask) { mask ->
+            value?.let { value = ListQuery(it.alerts, it.isFromCache, mask, it.searchQuery) }
+        }
+        addSource(activeSearchQuery) { query ->
+            value?.let { value = ListQuery(it.alerts, it.isFromCache, it.filterMask, query) }
+        }
+    }
+
+    @Volatile
+    private var lastSortedList: SortedList? = null
+
+    /**
+     * The alerts of the last emitted display models. Read by the background pipeline, but only
+     * written on the main thread, for the latest [listQuery].
+     */
+    @Volatile
+    private var lastDisplayedAlerts: List<Alert>? = null
+
+    /**
+     * Sorted and filtered alerts as display models. Sorting, filtering and creating the display
+     * models happen on a background thread, the main thread only has to bind the list items.
+     * A new list or filter supersedes the results of the previous one, because switchMap stops
+     * observing the previous LiveData.
+     * The display models are created again when they become outdated (eg. at midnight) while
+     * being observed.
+     */
+    val alerts: LiveData<DisplayedAlerts> = Transformations.switchMap(listQuery) { query ->
+        liveData(Dispatchers.Default) {
+            val list = search(filter(sort(query.alerts), query.filterMask), query.searchQuery)
+            var isChanged = list != lastDisplayedAlerts
+
+            while (true) {
+                val now = ZonedDateTime.now()
+                val models = list.map { AlertDisplayModel.create(appContext, it, alertListType, now) }
+                emit(DisplayedAlerts(models, isChanged, query.isFromCache))
+                withContext(Dispatchers.Main) {
+                    // A superseded block keeps running until its LiveData times out, it must not
+                    // overwrite the list of the latest query
+                    if (isActive && query === listQuery.value) {
+                        lastDisplayedAlerts = list
+                    }
+                }
+                isChanged = false
+
+                val validUntil = AlertDisplayModel.validUntil(models, now)
+                delay(Duration.between(now, validUntil).toMillis())
+            }
+        }
+    }
+
     val alertError: LiveData<AlertsRepository.Error> = alertsRepository.error
     val status: LiveData<Status> = alertsRepository.status
     val noConnectionWarning = SingleLiveEvent<Void>()
@@ -37,15 +140,16 @@ class AlertListViewModel(
     var activeFilter: MutableSet<RouteType> = mutableSetOf()
         set(value) {
             field = value
-
-            // Triggering a change in order to re-run Transformations.map() above
-            // with the changed filters
-            alertsRepository.todayAlerts.value = alertsRepository.todayAlerts.value
-            alertsRepository.futureAlerts.value = alertsRepository.futureAlerts.value
+            activeFilterMask.value = RouteType.maskOf(value)
         }
 
-
-    private val alertComparator = compareBy<Alert> { it.start }.thenBy { it.description }
+    var searchQuery: String
+        get() = activeSearchQuery.value ?: ""
+        set(value) {
+            if (value != activeSearchQuery.value) {
+                activeSearchQuery.value = value
+            }
+        }
 
     fun refresh() {
         if (appContext.hasNetworkConnection()) {
@@ -55,23 +159,43 @@ class AlertListViewModel(
         }
     }
 
-    fun fetchAlert(id: String): LiveData<Resource<Alert>> =
-            alertsRepository.fetchAlert(id, alertListType)
+    /**
+     * Finds an alert in any of the alert lists, eg. when opening an alert from a notification
+     */
+    fun findAlert(id: String): Alert? = alertStore.getAlert(id)
 
-    private fun sortAndFilter(alertList: List<Alert>?): List<Alert> {
-        if (alertList == null) return emptyList()
+    /**
+     * Looks up the details of an alert before the alert list is loaded, eg. the prefetched alert
+     * of a notification
+     * @param callback Called on the main thread, with null if the details are not known
+     */
+    fun loadCachedAlert(id: String, callback: (Alert?) -> Unit) {
+        alertsRepository.loadCachedAlert(id, callback)
+    }
 
-        val filteredList = if (activeFilter.isEmpty()) alertList else {
-            alertList.filter { alert ->
-                alert.affectedRoutes.any { activeFilter.contains(it.type) }
-            }
-        }
+    private fun sort(alertList: List<Alert>): List<Alert> {
+        lastSortedList?.let { if (it.source === alertList) return it.sorted }
 
-        val sortedList = filteredList.sortedWith(alertComparator)
-        return if (alertListType == AlertListType.Today) {
-            sortedList.reversed()
+        val sortedList = alertList.sortedWith(alertComparator)
+        val result = if (alertListType == AlertListType.Today) {
+            sortedList.asReversed()
         } else {
             sortedList
         }
+        lastSortedList = SortedList(alertList, result)
+        return result
+    }
+
+    private fun filter(sortedList: List<Alert>, filterMask: Int): List<Alert> {
+        if (filterMask == 0) return sortedList
+
+        return sortedList.filter { it.routeTypeMask and filterMask != 0 }
+    }
+
+    private fun search(alertList: List<Alert>, query: String): List<Alert> {
+        if (query.isBlank()) return alertList
+
+        val matchingIds = alertStore.search(query)
+        return alertList.filter { matchingIds.contains(it.id) }
     }
-}
\ No newline at end of file
+}
@@ -18,6 +18,11 @@ class AlertsViewModel(
 
     val notice = MutableLiveData<String?>()
 
+    /**
+     * Search query shared by the tabs, so that it's kept when switching tabs
+     */
+    val searchQuery = MutableLiveData<String>("")
+
     init {
         fetchNotices()
     }
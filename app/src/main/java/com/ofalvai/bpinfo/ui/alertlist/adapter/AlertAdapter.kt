@@ -22,19 +22,22 @@ import androidx.recyclerview.widget.DiffUtil
 import androidx.recyclerview.widget.ListAdapter
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.ui.alertlist.AlertListType
+import com.ofalvai.bpinfo.ui.alertlist.AlertDisplayModel
 import com.ofalvai.bpinfo.ui.alertlist.viewholder.AlertHolder
 
 class AlertAdapter(
-    private val alertListType: AlertListType,
     private val clickListener: (Alert) -> Unit
-) : ListAdapter<Alert, AlertHolder>(DIFF_CALLBACK) {
+) : ListAdapter<AlertDisplayModel, AlertHolder>(DIFF_CALLBACK) {
 
     companion object {
-        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<Alert>() {
-            override fun areItemsTheSame(oldItem: Alert, newItem: Alert) = oldItem.id == newItem.id
+        const val VIEW_TYPE_ALERT = 0
 
-            override fun areContentsTheSame(oldItem: Alert, newItem: Alert) = oldItem == newItem
+        private val DIFF_CALLBACK = object : DiffUtil.ItemCallback<AlertDisplayModel>() {
+            override fun areItemsTheSame(oldItem: AlertDisplayModel, newItem: AlertDisplayModel) =
+                oldItem.alert.id == newItem.alert.id
+
+            override fun areContentsTheSame(oldItem: AlertDisplayModel, newItem: AlertDisplayModel) =
+                oldItem == newItem
         }
     }
 
@@ -42,15 +45,14 @@ class AlertAdapter(
         val layoutInflater = LayoutInflater.from(parent.context)
         val view = layoutInflater.inflate(R.layout.list_item_alert, parent, false)
 
-        val holder = AlertHolder(view, alertListType)
-        holder.itemView.setOnClickListener {
-            val alert = getItem(holder.layoutPosition)
-            clickListener.invoke(alert)
-        }
-        return holder
+        // The click listener is set when binding, because holders are shared between the adapters
+        // of the tabs through a common RecycledViewPool
+        return AlertHolder(view)
     }
 
     override fun onBindViewHolder(holder: AlertHolder, position: Int) {
-        holder.bindAlert(getItem(position))
+        holder.bindAlert(getItem(position), clickListener)
     }
+
+    override fun getItemViewType(position: Int) = VIEW_TYPE_ALERT
 }
@@ -21,57 +21,48 @@ import android.widget.TextView
 import androidx.recyclerview.widget.RecyclerView
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.model.Route
 import com.ofalvai.bpinfo.model.RouteType
-import com.ofalvai.bpinfo.ui.alertlist.AlertListType
+import com.ofalvai.bpinfo.ui.alertlist.AlertDisplayModel
+import com.ofalvai.bpinfo.ui.view.RouteStripView
 import com.ofalvai.bpinfo.util.*
-import com.wefika.flowlayout.FlowLayout
 import timber.log.Timber
 
-class AlertHolder(itemView: View, private val alertListType: AlertListType) : RecyclerView.ViewHolder(itemView) {
+class AlertHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
 
     private val titleTextView: TextView by bindView(R.id.list_item_alert_description)
 
     private val dateTextView: TextView by bindView(R.id.list_item_alert_date)
 
-    private val routeIconsWrapper: FlowLayout by bindView(R.id.list_item_alert_route_icons_wrapper)
+    private val routeStripView: RouteStripView by bindView(R.id.list_item_alert_route_icons_wrapper)
 
     private val recentTextView: TextView by bindView(R.id.list_item_alert_recent)
 
-    /**
-     * List of currently displayed route icons. This list is needed in order to find visually
-     * duplicate route data, and not to display them twice.
-     */
-    private val displayedRoutes = mutableListOf<Route>()
+    private var boundModel: AlertDisplayModel? = null
 
-    fun bindAlert(alert: Alert) {
-        titleTextView.text = alert.header
+    private var clickListener: ((Alert) -> Unit)? = null
 
-        dateTextView.text = alert.formatDate(itemView.context)
+    init {
+        itemView.setOnClickListener {
+            boundModel?.let { clickListener?.invoke(it.alert) }
+        }
+    }
 
-        // Route icons
-        // First, removing any previously added icons
-        routeIconsWrapper.removeAllViews()
-        displayedRoutes.clear()
+    fun bindAlert(model: AlertDisplayModel, clickListener: (Alert) -> Unit) {
+        this.boundModel = model
+        this.clickListener = clickListener
 
-        // There are alerts without affected routes, eg. announcements
-        for (route in alert.affectedRoutes) {
-            // Some affected routes are visually identical to others in the list, no need
-            // to diplay them again.
-            if (!isRouteVisuallyDuplicate(route, displayedRoutes)) {
-                displayedRoutes.add(route)
-                addRouteIcon(itemView.context, routeIconsWrapper, route)
+        titleTextView.text = model.alert.header
 
-                if (route.type == RouteType.OTHER) {
-                    Timber.d("Unknown route type: %s (%s)", route.shortName, route.id)
-                }
+        dateTextView.text = model.dateText
+
+        // There are alerts without affected routes, eg. announcements
+        routeStripView.setRoutes(model.routes)
+        for (route in model.routes) {
+            if (route.type == RouteType.OTHER) {
+                Timber.d("Unknown route type: %s (%s)", route.shortName, route.id)
             }
         }
 
-        if (alertListType == AlertListType.Today) {
-            recentTextView.visibility = if (alert.isRecent()) View.VISIBLE else View.GONE
-        } else {
-            recentTextView.visibility = View.GONE
-        }
+        recentTextView.visibility = if (model.isRecent) View.VISIBLE else View.GONE
     }
 }
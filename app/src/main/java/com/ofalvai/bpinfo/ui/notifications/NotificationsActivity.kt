@@ -19,18 +19,13 @@ package com.ofalvai.bpinfo.ui.notifications
 import android.annotation.SuppressLint
 import android.content.Context
 import android.content.Intent
-import android.graphics.Color
-import android.graphics.LightingColorFilter
 import android.os.Bundle
 import android.view.Menu
 import android.view.MenuItem
 import android.view.View
-import android.view.ViewGroup
-import android.view.animation.DecelerateInterpolator
 import android.widget.Button
 import android.widget.TextView
 import androidx.appcompat.app.AlertDialog
-import androidx.appcompat.view.ContextThemeWrapper
 import androidx.core.app.NavUtils
 import androidx.core.content.ContextCompat
 import androidx.core.widget.ContentLoadingProgressBar
@@ -46,8 +41,8 @@ import com.ofalvai.bpinfo.notifications.NotificationMaker
 import com.ofalvai.bpinfo.ui.base.BaseActivity
 import com.ofalvai.bpinfo.ui.notifications.adapter.RouteListPagerAdapter
 import com.ofalvai.bpinfo.ui.settings.PreferencesActivity
+import com.ofalvai.bpinfo.ui.view.RouteStripView
 import com.ofalvai.bpinfo.util.*
-import com.wefika.flowlayout.FlowLayout
 import org.koin.android.ext.android.inject
 import org.koin.androidx.viewmodel.ext.android.viewModel
 import timber.log.Timber
@@ -60,7 +55,7 @@ class NotificationsActivity : BaseActivity() {
 
     private val tabLayout: TabLayout by bindView(R.id.notifications__tabs)
     private val viewPager: ViewPager by bindView(R.id.notifications__viewpager)
-    private val subscribedRoutesLayout: FlowLayout by bindView(R.id.notifications__subscribed_routes)
+    private val subscribedRoutesView: RouteStripView by bindView(R.id.notifications__subscribed_routes)
     private val subscribedEmptyView: TextView by bindView(R.id.notifications__subscribed_empty)
     private val progressBar: ContentLoadingProgressBar by bindView(R.id.notifications__progress_bar)
     private val errorView: View by bindView(R.id.notifications__error)
@@ -86,6 +81,7 @@ class NotificationsActivity : BaseActivity() {
         }
 
         setupViewPager()
+        subscribedRoutesView.onRouteClickListener = { showDeleteDialog(it) }
 
         GoogleApiAvailability.getInstance().makeGooglePlayServicesAvailable(this)
 
@@ -135,15 +131,15 @@ class NotificationsActivity : BaseActivity() {
 
         subscribedEmptyView.hide()
 
-        addSubscribedRouteIcon(route)
+        subscribedRoutesView.addRoute(route)
     }
 
     private fun removeSubscribedRoute(route: Route) {
         analytics.logNotificationUnsubscribe(route.id)
 
-        removeSubscribedRouteIcon(route)
+        subscribedRoutesView.removeRoute(route)
 
-        if (subscribedRoutesLayout.childCount == 0) {
+        if (subscribedRoutesView.routeCount == 0) {
             subscribedEmptyView.show()
         }
     }
@@ -153,17 +149,13 @@ class NotificationsActivity : BaseActivity() {
     }
 
     private fun displaySubscriptions(routeList: List<Route>) {
-        subscribedRoutesLayout.removeAllViews()
-
         if (routeList.isEmpty()) {
             subscribedEmptyView.show()
         } else {
             subscribedEmptyView.hide()
         }
 
-        for (route in routeList) {
-            addSubscribedRouteIcon(route)
-        }
+        subscribedRoutesView.setRoutes(routeList)
     }
 
     private fun showSubscriptionProgress(show: Boolean) {
@@ -215,53 +207,6 @@ class NotificationsActivity : BaseActivity() {
         tabLayout.setupWithViewPager(viewPager, false)
     }
 
-    @SuppressLint("RestrictedApi")
-    private fun addSubscribedRouteIcon(route: Route) {
-        val iconContextTheme = ContextThemeWrapper(this, R.style.RouteIcon_Big)
-        val iconView = TextView(iconContextTheme)
-
-        iconView.text = route.shortName
-        iconView.setTextColor(route.textColor)
-        iconView.contentDescription = route.getContentDescription(this)
-        iconView.tag = route.id
-        iconView.alpha = 0.0f
-        subscribedRoutesLayout.addView(iconView)
-
-        // Layout attributes defined in R.style.RouteIcon were ignored before attaching the view to
-        // a parent, so we need to manually set them
-        val params = iconView.layoutParams as ViewGroup.MarginLayoutParams
-        params.width = ViewGroup.LayoutParams.WRAP_CONTENT
-        val margin = resources.getDimension(R.dimen.route_icon_margin).toInt()
-        params.rightMargin = margin
-        params.topMargin = margin
-
-        // Setting a custom colored rounded background drawable as background
-        val iconBackground = ContextCompat.getDrawable(this, R.drawable.rounded_corner_5dp)
-        if (iconBackground != null) {
-            val colorFilter = LightingColorFilter(Color.rgb(1, 1, 1), route.color)
-            iconBackground.mutate().colorFilter = colorFilter
-            iconView.background = iconBackground
-        }
-
-        iconView.setOnClickListener { showDeleteDialog(route) }
-
-        iconView.animate().apply {
-            alpha(1.0f)
-            duration = 225
-            interpolator = DecelerateInterpolator()
-            start()
-        }
-    }
-
-    private fun removeSubscribedRouteIcon(route: Route) {
-        for (i in 0 until subscribedRoutesLayout.childCount) {
-            val view: View? = subscribedRoutesLayout.getChildAt(i)
-            if (view?.tag == route.id) {
-                subscribedRoutesLayout.removeView(view)
-            }
-        }
-    }
-
     private fun showDeleteDialog(route: Route) {
         AlertDialog.Builder(this)
             .setTitle(route.shortName) // TODO: localized long name
@@ -21,7 +21,8 @@ import androidx.lifecycle.ViewModel
 import com.ofalvai.bpinfo.api.bkkinfo.RouteListClient
 import com.ofalvai.bpinfo.api.subscription.SubscriptionClient
 import com.ofalvai.bpinfo.model.Route
-import com.ofalvai.bpinfo.model.RouteSubscription
+import com.ofalvai.bpinfo.notifications.SubscriptionQueue
+import com.ofalvai.bpinfo.notifications.SubscriptionStore
 import com.ofalvai.bpinfo.util.Analytics
 import com.ofalvai.bpinfo.util.SingleLiveEvent
 import timber.log.Timber
@@ -29,9 +30,9 @@ import timber.log.Timber
 class NotificationsViewModel(
     private val routeListClient: RouteListClient,
     private val subscriptionClient: SubscriptionClient,
+    private val subscriptionStore: SubscriptionStore,
     private val analytics: Analytics
-) : ViewModel(), RouteListClient.RouteListListener,
-    SubscriptionClient.Callback {
+) : ViewModel(), RouteListClient.RouteListListener, SubscriptionStore.RejectionListener {
 
     /**
      * List of all routes, before grouped by route type
@@ -43,7 +44,9 @@ class NotificationsViewModel(
     val subscriptions = MutableLiveData<List<Route>>()
 
     /**
-     * Progress of any subscription action (get list, add, remove)
+     * Progress of loading the subscription list, only while there's no persisted copy of it.
+     * Adding and removing subscriptions is displayed right away, the changes are sent in the
+     * background by [SubscriptionQueue].
      */
     val subscriptionProgress = MutableLiveData<Boolean>()
 
@@ -53,43 +56,81 @@ class NotificationsViewModel(
 
     val removedSubscribedRoute = MutableLiveData<Route>()
 
-    private var subscribedRouteIDList: MutableList<String>? = null
+    private var subscribedRouteIDs: MutableSet<String>? = null
+
+    /**
+     * Index of [routeList] by route ID
+     */
+    private var routesById: Map<String, Route> = emptyMap()
 
     init {
         fetchRouteList()
+        loadPersistedSubscriptions()
         fetchSubscriptions()
+        subscriptionStore.addRejectionListener(this)
+    }
+
+    override fun onCleared() {
+        subscriptionStore.removeRejectionListener(this)
     }
 
     fun fetchRouteList() {
         routeListClient.fetchRouteList(this)
     }
 
+    /**
+     * Fetches the subscriptions from the backend. If they are already known from the persisted
+     * copy, the fetch only reconciles them in the background.
+     */
     fun fetchSubscriptions() {
-        subscriptionProgress.value = true
-        subscriptionClient.getSubscriptions(this)
+        if (subscribedRouteIDs == null) {
+            subscriptionProgress.value = true
+        }
+
+        val generation = subscriptionStore.syncGeneration
+        subscriptionClient.getSubscriptions(object : SubscriptionClient.Callback {
+            override fun onSubscriptionError(error: Throwable) {
+                onSubscriptionListError(error)
+            }
+
+            override fun onGetSubscriptionResponse(routeIDList: List<String>) {
+                onSubscriptionListResponse(routeIDList, generation)
+            }
+        })
     }
 
     fun subscribeTo(routeID: String) {
-        subscribedRouteIDList?.let {
+        subscribedRouteIDs?.let {
             if (it.contains(routeID)) {
                 return
             }
         }
 
-        subscriptionProgress.value = true
-        subscriptionClient.postSubscription(routeID, this)
+        subscriptionStore.subscribe(routeID)
+        subscribedRouteIDs?.add(routeID)
+
+        val route: Route? = routesById[routeID]
+        route?.let {
+            newSubscribedRoute.value = it
+        }
     }
 
     fun removeSubscription(routeID: String) {
-        subscriptionProgress.value = true
-        subscriptionClient.deleteSubscription(routeID, this)
+        subscriptionStore.unsubscribe(routeID)
+        subscribedRouteIDs?.remove(routeID)
+
+        val route: Route? = routesById[routeID]
+        route?.let {
+            removedSubscribedRoute.value = it
+        }
     }
 
     override fun onRouteListResponse(routeList: List<Route>) {
+        routesById = routeList.associateBy { it.id }
         this.routeList.value = routeList
         routeListError.value = false
 
-        subscribedRouteIDList?.let {
+        subscribedRouteIDs?.let {
             displaySubscribedRoutes(it, routeList)
         }
     }
@@ -99,46 +140,49 @@ class NotificationsViewModel(
         routeListError.value = true
     }
 
-    override fun onSubscriptionError(error: Throwable) {
+    private fun onSubscriptionListError(error: Throwable) {
         Timber.e(error)
         analytics.logException(error)
         subscriptionProgress.value = false
-        subscriptionError.call()
-    }
 
-    override fun onPostSubscriptionResponse(subscription: RouteSubscription) {
-        subscriptionProgress.value = false
+        // The persisted subscriptions are still displayed
+        if (subscribedRouteIDs == null) {
+            subscriptionError.call()
+        }
+    }
 
-        subscribedRouteIDList?.let {
-            if (it.contains(subscription.routeID)) {
-                return
-            }
+    /**
+     * @param generation [SubscriptionStore.syncGeneration] when the list was requested
+     */
+    private fun onSubscriptionListResponse(routeIDList: List<String>, generation: Int) {
+        if (!subscriptionStore.update(routeIDList, generation)) {
+            Timber.d("Subscriptions changed by a sync since the request, keeping the synced ones")
         }
 
-        subscribedRouteIDList?.add(subscription.routeID)
+        // Changes not yet accepted by the backend are not reverted
+        val routeIDs = subscriptionStore.subscribedRouteIDs.toHashSet()
+        subscribedRouteIDs = routeIDs
 
-        val route: Route? = routeList.value?.find { it.id == subscription.routeID }
-        route?.let {
-            newSubscribedRoute.value = it
+        routeList.value?.let {
+            displaySubscribedRoutes(routeIDs, it)
         }
     }
 
-    override fun onGetSubscriptionResponse(routeIDList: List<String>) {
-        subscribedRouteIDList = routeIDList.toMutableList()
+    override fun onChangesRejected(rejectedChanges: Map<String, Boolean>) {
+        // The subscribed routes were updated right away, they need to be reverted
+        val routeIDs = subscriptionStore.subscribedRouteIDs.toHashSet()
+        subscribedRouteIDs = routeIDs
 
         routeList.value?.let {
-            displaySubscribedRoutes(routeIDList, it)
+            displaySubscribedRoutes(routeIDs, it)
         }
+        subscriptionError.call()
     }
 
-    override fun onDeleteSubscriptionResponse(subscription: RouteSubscription) {
-        subscriptionProgress.value = false
-
-        subscribedRouteIDList?.removeAll { it == subscription.routeID }
-
-        val route: Route? = routeList.value?.find { it.id == subscription.routeID }
-        route?.let {
-            removedSubscribedRoute.value = it
+    private fun loadPersistedSubscriptions() {
+        if (subscriptionStore.isLoaded) {
+            // Displayed once the route list arrives
+            subscribedRouteIDs = subscriptionStore.subscribedRouteIDs.toHashSet()
         }
     }
 
@@ -146,8 +190,8 @@ class NotificationsViewModel(
      * Calls the View with the full Route objects when both the subscribed route IDs and
      * the list of all Route objects are available
      */
-    private fun displaySubscribedRoutes(routeIDList: List<String>, allRoutes: List<Route>) {
-        val routes: List<Route> = allRoutes.filter { routeIDList.contains(it.id) }
+    private fun displaySubscribedRoutes(routeIDs: Set<String>, allRoutes: List<Route>) {
+        val routes: List<Route> = allRoutes.filter { routeIDs.contains(it.id) }
         subscriptions.value = routes
         subscriptionProgress.value = false
     }
@@ -17,24 +17,22 @@
 package com.ofalvai.bpinfo.ui.notifications.routelist.viewholder
 
 import android.view.View
-import android.widget.FrameLayout
 import android.widget.TextView
 import androidx.core.text.HtmlCompat
 import androidx.recyclerview.widget.RecyclerView
 import com.ofalvai.bpinfo.R
 import com.ofalvai.bpinfo.model.Route
-import com.ofalvai.bpinfo.util.addRouteIcon
+import com.ofalvai.bpinfo.ui.view.RouteStripView
 import com.ofalvai.bpinfo.util.bindView
 
 class RouteViewHolder(itemView: View) : RecyclerView.ViewHolder(itemView) {
 
-    private val iconWrapperLayout: FrameLayout by bindView(R.id.list_item_route__icon_wrapper)
+    private val routeStripView: RouteStripView by bindView(R.id.list_item_route__icon_wrapper)
 
     private val descriptionTextView: TextView by bindView(R.id.list_item_route__description)
 
     fun bind(route: Route) {
-        iconWrapperLayout.removeAllViews()
-        addRouteIcon(itemView.context, iconWrapperLayout, route)
+        routeStripView.setRoutes(listOf(route))
 
         route.description?.let {
             descriptionTextView.text = HtmlCompat.fromHtml(it, HtmlCompat.FROM_HTML_MODE_LEGACY)
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2018 Olivér Falvai
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.ofalvai.bpinfo.ui.view
+
+import android.annotation.SuppressLint
+import android.content.Context
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.RectF
+import android.graphics.Typeface
+import android.os.Bundle
+import android.text.TextPaint
+import android.util.AttributeSet
+import android.util.LruCache
+import android.view.KeyEvent
+import android.view.MotionEvent
+import android.view.SoundEffectConstants
+import android.view.View
+import android.view.accessibility.AccessibilityEvent
+import androidx.core.view.ViewCompat
+import androidx.core.view.accessibility.AccessibilityNodeInfoCompat
+import androidx.customview.widget.ExploreByTouchHelper
+import com.ofalvai.bpinfo.R
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.util.getContentDescription
+import kotlin.math.max
+
+/**
+ * Displays route badges (the route's shortName on the route's color), wrapped into multiple rows.
+ * All badges are measured and drawn by this single view, instead of adding a TextView for every
+ * route. Each badge is exposed to accessibility services as a virtual view.
+ */
+class RouteStripView @JvmOverloads constructor(
+    context: Context,
+    attrs: AttributeSet? = null,
+    defStyleAttr: Int = 0
+) : View(context, attrs, defStyleAttr) {
+
+    companion object {
+        /**
+         * Text widths are shared by all strips, the same route names appear in many alerts
+         */
+        private val textWidthCache = LruCache<String, Float>(512)
+    }
+
+    private class Badge(val route: Route, val text: String, val textWidth: Float, val width: Float) {
+        val bounds = RectF()
+    }
+
+    /**
+     * Called when a badge is clicked. Badges are not clickable if this is null.
+     */
+    var onRouteClickListener: ((Route) -> Unit)? = null
+
+    val routeCount: Int
+        get() = badges.size
+
+    private val badges = mutableListOf<Badge>()
+
+    private val badgePaddingHorizontal: Float
+    private val badgePaddingVertical: Float
+    private val badgeMinWidth: Float
+    private val badgeSpacing: Float
+    private val badgeCornerRadius: Float
+    private val badgeHeight: Float
+
+    /**
+     * Distance of the text baseline from the top of a badge
+     */
+    private val textBaseline: Float
+
+    private val badgePaint = Paint(Paint.ANTI_ALIAS_FLAG)
+    private val textPaint = TextPaint(Paint.ANTI_ALIAS_FLAG)
+
+    private val accessibilityHelper = BadgeAccessibilityHelper()
+
+    private var contentWidth = 0f
+    private var contentHeight = 0f
+
+    private var touchedBadge: Badge? = null
+
+    init {
+        val a = context.obtainStyledAttributes(
+            attrs, R.styleable.RouteStripView, defStyleAttr, R.style.RouteStrip
+        )
+        badgePaddingHorizontal = a.getDimension(R.styleable.RouteStripView_badgePaddingHorizontal, 0f)
+        badgePaddingVertical = a.getDimension(R.styleable.RouteStripView_badgePaddingVertical, 0f)
+        badgeMinWidth = a.getDimension(R.styleable.RouteStripView_badgeMinWidth, 0f)
+        badgeSpacing = a.getDimension(R.styleable.RouteStripView_badgeSpacing, 0f)
+        badgeCornerRadius = a.getDimension(R.styleable.RouteStripView_badgeCornerRadius, 0f)
+        textPaint.textSize = a.getDimension(R.styleable.RouteStripView_badgeTextSize, 0f)
+        a.recycle()
+
+        textPaint.typeface = Typeface.DEFAULT_BOLD
+        val fontMetrics = textPaint.fontMetrics
+        badgeHeight = fontMetrics.bottom - fontMetrics.top + 2 * badgePaddingVertical
+        textBaseline = badgePaddingVertical - fontMetrics.top
+
+        ViewCompat.setAccessibilityDelegate(this, accessibilityHelper)
+    }
+
+    fun setRoutes(routes: List<Route>) {
+        badges.clear()
+        routes.mapTo(badges, this::createBadge)
+        onBadgesChanged()
+    }
+
+    fun addRoute(route: Route) {
+        badges.add(createBadge(route))
+        onBadgesChanged()
+    }
+
+    fun removeRoute(route: Route) {
+        if (badges.removeAll { it.route.id == route.id }) {
+            onBadgesChanged()
+        }
+    }
+
+    override fun onMeasure(widthMeasureSpec: Int, heightMeasureSpec: Int) {
+        val maxWidth = if (MeasureSpec.getMode(widthMeasureSpec) == MeasureSpec.UNSPECIFIED) {
+            Float.MAX_VALUE
+        } else {
+            MeasureSpec.getSize(widthMeasureSpec).toFloat()
+        }
+        layoutBadges(maxWidth)
+
+        val width = max(paddingLeft + contentWidth.toInt() + paddingRight, suggestedMinimumWidth)
+        val height = max(paddingTop + contentHeight.toInt() + paddingBottom, suggestedMinimumHeight)
+        setMeasuredDimension(
+            resolveSize(width, widthMeasureSpec),
+            resolveSize(height, heightMeasureSpec)
+        )
+    }
+
+    override fun onSizeChanged(w: Int, h: Int, oldw: Int, oldh: Int) {
+        super.onSizeChanged(w, h, oldw, oldh)
+        layoutBadges(w.toFloat())
+    }
+
+    override fun onDraw(canvas: Canvas) {
+        for (badge in badges) {
+            badgePaint.color = badge.route.color
+            canvas.drawRoundRect(badge.bounds, badgeCornerRadius, badgeCornerRadius, badgePaint)
+
+            textPaint.color = badge.route.textColor
+            val textLeft = badge.bounds.left + (badge.width - badge.textWidth) / 2
+            canvas.drawText(badge.text, textLeft, badge.bounds.top + textBaseline, textPaint)
+        }
+    }
+
+    // Clicks are exposed to accessibility services by the virtual views of the badges
+    @SuppressLint("ClickableViewAccessibility")
+    override fun onTouchEvent(event: MotionEvent): Boolean {
+        if (onRouteClickListener == null) {
+            return super.onTouchEvent(event)
+        }
+
+        when (event.actionMasked) {
+            MotionEvent.ACTION_DOWN -> {
+                touchedBadge = findBadge(event.x, event.y)
+                return touchedBadge != null
+            }
+            MotionEvent.ACTION_UP -> {
+                val badge = findBadge(event.x, event.y)
+                if (badge != null && badge === touchedBadge) {
+                    performRouteClick(badges.indexOf(badge))
+                }
+                touchedBadge = null
+            }
+            MotionEvent.ACTION_CANCEL -> touchedBadge = null
+        }
+        return true
+    }
+
+    override fun dispatchHoverEvent(event: MotionEvent): Boolean {
+        return accessibilityHelper.dispatchHoverEvent(event) || super.dispatchHoverEvent(event)
+    }
+
+    override fun dispatchKeyEvent(event: KeyEvent): Boolean {
+        return accessibilityHelper.dispatchKeyEvent(event) || super.dispatchKeyEvent(event)
+    }
+
+    override fun onFocusChanged(gainFocus: Boolean, direction: Int, previouslyFocusedRect: Rect?) {
+        super.onFocusChanged(gainFocus, direction, previouslyFocusedRect)
+        accessibilityHelper.onFocusChanged(gainFocus, direction, previouslyFocusedRect)
+    }
+
+    private fun createBadge(route: Route): Badge {
+        val text = route.shortName ?: ""
+        val cacheKey = "${textPaint.textSize}|$text"
+        val textWidth = textWidthCache.get(cacheKey) ?: textPaint.measureText(text).also {
+            textWidthCache.put(cacheKey, it)
+        }
+        val width = max(textWidth + 2 * badgePaddingHorizontal, badgeMinWidth)
+        return Badge(route, text, textWidth, width)
+    }
+
+    private fun onBadgesChanged() {
+        touchedBadge = null
+        requestLayout()
+        invalidate()
+        accessibilityHelper.invalidateRoot()
+    }
+
+    /**
+     * Places the badges in rows, starting a new row when the next badge doesn't fit into maxWidth.
+     * Every badge has a spacing on its top and right side.
+     */
+    private fun layoutBadges(maxWidth: Float) {
+        val left = paddingLeft.toFloat()
+        val right = maxWidth - paddingRight
+        var x = left
+        var rowTop = paddingTop.toFloat()
+        var usedRight = left
+
+        for (badge in badges) {
+            if (x > left && x + badge.width + badgeSpacing > right) {
+                x = left
+                rowTop += badgeSpacing + badgeHeight
+            }
+            val top = rowTop + badgeSpacing
+            badge.bounds.set(x, top, x + badge.width, top + badgeHeight)
+
+            x += badge.width + badgeSpacing
+            usedRight = max(usedRight, x)
+        }
+
+        contentWidth = usedRight - left
+        contentHeight = if (badges.isEmpty()) 0f else rowTop + badgeSpacing + badgeHeight - paddingTop
+    }
+
+    private fun findBadge(x: Float, y: Float): Badge? = badges.firstOrNull { it.bounds.contains(x, y) }
+
+    private fun performRouteClick(index: Int) {
+        val badge = badges.getOrNull(index) ?: return
+        playSoundEffect(SoundEffectConstants.CLICK)
+        onRouteClickListener?.invoke(badge.route)
+        accessibilityHelper.sendEventForVirtualView(index, AccessibilityEvent.TYPE_VIEW_CLICKED)
+    }
+
+    private inner class BadgeAccessibilityHelper : ExploreByTouchHelper(this) {
+
+        private val tempRect = Rect()
+
+        override fun getVirtualViewAt(x: Float, y: Float): Int {
+            val index = badges.indexOfFirst { it.bounds.contains(x, y) }
+            return if (index >= 0) index else INVALID_ID
+        }
+
+        override fun getVisibleVirtualViews(virtualViewIds: MutableList<Int>) {
+            virtualViewIds.addAll(badges.indices)
+        }
+
+        override fun onPopulateNodeForVirtualView(
+            virtualViewId: Int,
+            node: AccessibilityNodeInfoCompat
+        ) {
+            val badge = badges.getOrNull(virtualViewId)
+            if (badge == null) {
+                // The badges have changed since the virtual view was requested
+                node.contentDescription = ""
+                tempRect.setEmpty()
+                @Suppress("DEPRECATION")
+                node.setBoundsInParent(tempRect)
+                return
+            }
+
+            node.contentDescription = badge.route.getContentDescription(context)
+            badge.bounds.roundOut(tempRect)
+            @Suppress("DEPRECATION")
+            node.setBoundsInParent(tempRect)
+
+            if (onRouteClickListener != null) {
+                node.isClickable = true
+                node.addAction(AccessibilityNodeInfoCompat.ACTION_CLICK)
+            }
+        }
+
+        override fun onPerformActionForVirtualView(
+            virtualViewId: Int,
+            action: Int,
+            arguments: Bundle?
+        ): Boolean {
+            if (action == AccessibilityNodeInfoCompat.ACTION_CLICK && onRouteClickListener != null) {
+                performRouteClick(virtualViewId)
+                return true
+            }
+            return false
+        }
+    }
+}
@@ -17,21 +17,18 @@
 package com.ofalvai.bpinfo.util
 
 import android.Manifest
-import android.annotation.SuppressLint
 import android.app.Activity
 import android.content.Context
-import android.graphics.Color
-import android.graphics.LightingColorFilter
 import android.graphics.Paint
 import android.net.ConnectivityManager
 import android.net.Uri
+import android.util.JsonReader
+import android.util.JsonToken
 import android.view.View
-import android.view.ViewGroup
 import android.widget.TextView
 import androidx.annotation.RequiresPermission
 import androidx.annotation.StringRes
 import androidx.appcompat.app.AppCompatActivity
-import androidx.appcompat.view.ContextThemeWrapper
 import androidx.browser.customtabs.CustomTabsIntent
 import androidx.core.content.ContextCompat
 import androidx.core.content.getSystemService
@@ -47,27 +44,11 @@ import org.json.JSONArray
 import org.json.JSONException
 import org.json.JSONObject
 import org.threeten.bp.Instant
-import org.threeten.bp.ZoneId
 import org.threeten.bp.ZonedDateTime
-
-/**
- * Detects if a route seems to be a replacement route from its ID format.
- * It's needed because the API returns replacement routes mixed together with the affected routes.
- */
-fun Route.isReplacement(): Boolean {
-    /*
-      Possible values and meanings:
-      BKK_VP: VillamosPótló
-      BKK_V: VillamosPótló
-      BKK_OP: Operatív Pótló (Metró, Villamos)
-      BKK_TP: TroliPótló
-      BKK_HP: HévPótló
-      BKK_MP: MetróPótló
-      to be continued...
-     */
-    val replacementIdPattern = "BKK_(VP?|OP|TP|HP|MP)[0-9A-Z]+"
-    return id.matches(replacementIdPattern.toRegex())
-}
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
 
 fun RouteType.getName(context: Context): String {
     val resourceId: Int = when (this) {
@@ -83,11 +64,6 @@ fun RouteType.getName(context: Context): String {
     return context.getString(resourceId)
 }
 
-@Throws(JSONException::class)
-fun JSONArray.toStringList(): List<String> {
-    return (0 until length()).map { getString(it) }
-}
-
 @Throws(JSONException::class)
 fun JSONObject.toArray(): JSONArray {
     val keys = keys()
@@ -101,6 +77,30 @@ fun JSONObject.toArray(): JSONArray {
     return result
 }
 
+/**
+ * Returns the next string value, or null if the next token is a JSON null
+ */
+fun JsonReader.nextStringOrNull(): String? {
+    return if (peek() == JsonToken.NULL) {
+        nextNull()
+        null
+    } else {
+        nextString()
+    }
+}
+
+/**
+ * Returns the next long value, or null if the next token is a JSON null
+ */
+fun JsonReader.nextLongOrNull(): Long? {
+    return if (peek() == JsonToken.NULL) {
+        nextNull()
+        null
+    } else {
+        nextLong()
+    }
+}
+
 /**
  * Returns the appropriate error message depending on the concrete error type
  * @return  ID of the String resource of the appropriate error message
@@ -115,29 +115,18 @@ fun VolleyError.toStringRes() = when (this) {
 }
 
 /**
- * Certain affected routes returned by the alerts API are visually identical if we display only
- * their shortName and color. It's enough to display only one of these routes, so every affected
- * route can be compared to the already displayed routes with this method.
- * @param routes List of routes to test against
- * @return true if routeToTest is visually identical to any of the other routes, false otherwise
+ * Returns whether an alert counts as a recent one based on the start timestamp.
  */
-fun isRouteVisuallyDuplicate(routeToTest: Route, routes: List<Route>): Boolean {
-    for ((_, shortName, _, _, type) in routes) {
-        if (shortName == routeToTest.shortName && type == routeToTest.type) {
-            return true
-        }
-    }
-    return false
+fun Alert.isRecent(now: ZonedDateTime = ZonedDateTime.now()): Boolean {
+    return recentUntil().isAfter(now)
 }
 
 /**
- * Returns whether an alert counts as a recent one based on the start timestamp.
+ * Returns the time when the alert stops counting as a recent one
  */
-fun Alert.isRecent(): Boolean {
-    val startPlusThreshold: ZonedDateTime = apiTimestampToDateTime(start)
+fun Alert.recentUntil(): ZonedDateTime {
+    return apiTimestampToDateTime(start)
         .plusHours(Config.Behavior.ALERT_RECENT_THRESHOLD_HOURS.toLong())
-
-    return startPlusThreshold.isAfter(ZonedDateTime.now())
 }
 
 @RequiresPermission(Manifest.permission.ACCESS_NETWORK_STATE)
@@ -156,16 +145,17 @@ fun Route.getContentDescription(context: Context): String {
 /**
  * Transforms the start and end timestamps into a human-friendly readable string,
  * with special replacements for special dates, times, and the API's strange notations.
+ * @param now Today, yesterday and tomorrow are relative to this time
  * @return  A string in the format of {startdate} {starttime} {separator} {enddate} {endtime}
  */
 @Suppress("CascadeIf")
-fun Alert.formatDate(context: Context): String {
+fun Alert.formatDate(context: Context, now: ZonedDateTime = ZonedDateTime.now()): String {
     val startDateTime: ZonedDateTime = apiTimestampToDateTime(start)
     val endDateTime = apiTimestampToDateTime(end)
     val startDate = startDateTime.toLocalDate()
     val endDate = endDateTime.toLocalDate()
 
-    val today = ZonedDateTime.now()
+    val today = now
     val todayDate = today.toLocalDate()
     val yesterday = today.minusDays(1)
     val yesterdayDate = yesterday.toLocalDate()
@@ -228,47 +218,6 @@ fun Alert.formatDate(context: Context): String {
     return startDateString + startTimeString + Config.DATE_SEPARATOR + endDateString + endTimeString
 }
 
-/**
- * Adds a rectangular icon for the affected route.
- *
- * First it creates a TextView, then sets the style properties of the view.
- * The custom colored rounded background is achieved by a Drawable and a ColorFilter on top of.
- * @param context Context
- * @param root ViewGroup to add the icon to
- * @param route
- */
-@SuppressLint("RestrictedApi")
-fun addRouteIcon(context: Context, root: ViewGroup, route: Route): TextView {
-    val iconContextTheme = ContextThemeWrapper(context, R.style.RouteIcon)
-    val iconView = TextView(iconContextTheme)
-
-    iconView.text = route.shortName
-    iconView.setTextColor(route.textColor)
-    iconView.contentDescription = route.getContentDescription(context)
-    root.addView(iconView)
-
-    // Layout attributes defined in R.style.RouteIcon were ignored before attaching the view to
-    // a parent, so we need to manually set them
-    val params = iconView.layoutParams as ViewGroup.MarginLayoutParams
-    params.width = ViewGroup.LayoutParams.WRAP_CONTENT
-    val margin = context.resources.getDimension(R.dimen.route_icon_margin).toInt()
-    params.rightMargin = margin
-    params.topMargin = margin
-    // A requestLayout() call is not necessary here because the setBackground() method below
-    // will call that anyway.
-    //iconView.requestLayout();
-
-    // Setting a custom colored rounded background drawable as background
-    val iconBackground = ContextCompat.getDrawable(context, R.drawable.rounded_corner_5dp)
-    if (iconBackground != null) {
-        val colorFilter = LightingColorFilter(Color.rgb(1, 1, 1), route.color)
-        iconBackground.mutate().colorFilter = colorFilter
-        iconView.background = iconBackground
-    }
-
-    return iconView
-}
-
 /**
  * Opens a Chrome custom tab styled to the application's theme
  * @param activity  Used for context and launching fallback intent
@@ -295,10 +244,7 @@ fun View.hide() {
 }
 
 fun apiTimestampToDateTime(seconds: Long): ZonedDateTime {
-    return ZonedDateTime.ofInstant(
-        Instant.ofEpochSecond(seconds),
-        ZoneId.of("Europe/Budapest") // We can safely assume the timezone of the API
-    )
+    return ZonedDateTime.ofInstant(Instant.ofEpochSecond(seconds), Config.API_ZONE)
 }
 
 fun <T> Request<T>.addTo(queue: RequestQueue) {
@@ -311,4 +257,19 @@ fun <T> AppCompatActivity.observe(liveData: LiveData<T>, observer: (T) -> Unit)
 
 fun <T> Fragment.observe(liveData: LiveData<T>, observer: (T) -> Unit) {
     liveData.observe(viewLifecycleOwner, { observer.invoke(it) })
-}
\ No newline at end of file
+}
+
+private const val SERIAL_EXECUTOR_KEEP_ALIVE_SEC = 30L
+
+/**
+ * Executes tasks in order on a single daemon thread, which stops after being idle for a while.
+ * Components recreated on every Koin restart (eg. after a data source change) don't leak their
+ * threads this way.
+ */
+fun newSerialExecutor(name: String): ExecutorService {
+    return ThreadPoolExecutor(
+        0, 1, SERIAL_EXECUTOR_KEEP_ALIVE_SEC, TimeUnit.SECONDS, LinkedBlockingQueue()
+    ) { runnable ->
+        Thread(runnable, name).apply { isDaemon = true }
+    }
+}
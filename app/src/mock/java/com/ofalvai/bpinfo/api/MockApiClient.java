@@ -38,30 +38,46 @@ public class MockApiClient implements AlertApiClient {
     }
 
     @Override
-    public void fetchAlertList(@NonNull final AlertApiClient.AlertListCallback callback) {
+    public Cancellable fetchAlertList(@NonNull final AlertApiClient.AlertListCallback callback) {
 
         if (SIMULATE_CHANGES) {
             changeState();
         }
         Timber.i("Mock API request");
 
-        new Handler().postDelayed(new Runnable() {
+        final Handler handler = new Handler();
+        final Runnable response = new Runnable() {
             @Override
             public void run() {
                 callback.onAlertListResponse(TEST_ALERTS, TEST_ALERTS);
             }
-        }, SIMULATE_DELAY_MS);
+        };
+        handler.postDelayed(response, SIMULATE_DELAY_MS);
+
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                handler.removeCallbacks(response);
+            }
+        };
     }
 
     @Override
-    public void fetchAlert(@NonNull String id, @NonNull AlertListType alertListType,
-                           @NonNull AlertDetailCallback callback) {
+    public Cancellable fetchAlert(@NonNull String id, @NonNull AlertListType alertListType,
+                                  @NonNull AlertDetailCallback callback) {
         for (Alert alert : TEST_ALERTS) {
             if (alert.getId().equals(id)) {
                 callback.onAlertResponse(alert);
                 break;
             }
         }
+
+        return new Cancellable() {
+            @Override
+            public void cancel() {
+                // The response is delivered synchronously, there's nothing to cancel
+            }
+        };
     }
 
     private void makeTestAlerts() {
@@ -17,6 +17,7 @@
 package com.ofalvai.bpinfo.injection
 
 import com.android.volley.RequestQueue
+import com.android.volley.toolbox.BaseHttpStack
 import com.android.volley.toolbox.Volley
 import com.ofalvai.bpinfo.api.AlertApiClient
 import com.ofalvai.bpinfo.api.MockApiClient
@@ -28,13 +29,14 @@ import org.koin.dsl.module.module
 
 val apiModule = module {
 
-    single<RequestQueue> { Volley.newRequestQueue(androidContext()) }
+    // The HTTP transport is provided by networkModule
+    single<RequestQueue> { Volley.newRequestQueue(androidContext(), get<BaseHttpStack>()) }
 
     single<AlertApiClient> { MockApiClient() }
 
     single { NoticeClient(get(), androidContext(), get()) }
 
-    single { RouteListClient(get()) }
+    single { RouteListClient(get(), get()) }
 
     single { SubscriptionClient(get()) }
 }
\ No newline at end of file
@@ -0,0 +1,39 @@
+package com.ofalvai.bpinfo
+
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.ui.alertlist.AlertDisplayModel
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.threeten.bp.ZonedDateTime
+
+class AlertDisplayModelTest {
+
+    private val now = ZonedDateTime.of(2020, 10, 20, 15, 0, 0, 0, Config.API_ZONE)
+
+    private val midnight = ZonedDateTime.of(2020, 10, 21, 0, 0, 0, 0, Config.API_ZONE)
+
+    @Test
+    fun `display models are valid until midnight without recent alerts`() {
+        val start = now.minusDays(3).toEpochSecond()
+        val models = listOf(createModel(start, isRecent = false))
+
+        assertEquals(midnight, AlertDisplayModel.validUntil(models, now))
+    }
+
+    @Test
+    fun `display models are valid until the first recent alert stops being recent`() {
+        val start = now.minusHours(Config.Behavior.ALERT_RECENT_THRESHOLD_HOURS - 2L)
+        val models = listOf(
+            createModel(now.minusDays(3).toEpochSecond(), isRecent = false),
+            createModel(start.toEpochSecond(), isRecent = true),
+            createModel(now.toEpochSecond(), isRecent = true)
+        )
+
+        assertEquals(now.plusHours(2), AlertDisplayModel.validUntil(models, now))
+    }
+
+    private fun createModel(start: Long, isRecent: Boolean): AlertDisplayModel {
+        val alert = Alert("alert-$start", start, 0, 0, null, null, null, emptyList(), true)
+        return AlertDisplayModel(alert, "", isRecent, alert.visibleRoutes)
+    }
+}
@@ -0,0 +1,138 @@
+package com.ofalvai.bpinfo
+
+import com.ofalvai.bpinfo.api.bkkinfo.AlertListParser
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+import org.json.JSONException
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AlertListParserTest : ParserTest() {
+
+    companion object {
+        private const val FIXTURE = "bkkinfo-alert-list.json"
+
+        private val NIGHT_BUS_COLOR = 0xFF1E1E1E.toInt()
+
+        private fun route(shortName: String, type: RouteType, color: Long, textColor: Long) =
+            Route(shortName, shortName, null, null, type, color.toInt(), textColor.toInt(), false)
+
+        private val tram6 = route("6", RouteType.TRAM, 0xFFFFD800, 0xFF000000)
+        private val tram4 = route("4", RouteType.TRAM, 0xFFFFD800, 0xFF000000)
+        private val nightBus956 = route("956", RouteType.BUS, 0xFF1E1E1E, 0xFFFFFFFF)
+        private val nightBus979A = route("979A", RouteType.BUS, 0xFF1E1E1E, 0xFFFFFFFF)
+        private val bus5 = route("5", RouteType.BUS, 0xFF009FE3, 0xFFFFFFFF)
+        private val nostalgiaBus = route("I", RouteType.BUS, 0xFFFFA417, 0xFFFFFFFF)
+        private val subwayM2 = route("M2", RouteType.SUBWAY, 0xFFFF1609, 0xFFFFFFFF)
+        private val ferryD12 = route("D12", RouteType.FERRY, 0xFF9A1915, 0xFFFFFFFF)
+        private val unknownRoute = route("X", RouteType.OTHER, 0xFFEEEEEE, 0xFFBBBBBB)
+
+        private val alert101 = Alert(
+            "101", 1500000000, 0, 1500000100, "http://m.bkkinfo.hu/alert.php?id=101",
+            "Villamospótló busz", null, listOf(tram6, tram4, nightBus956, nightBus979A), true
+        )
+        private val alert102 = Alert(
+            "102", 1500000000, 1500003600, 1500000200, "http://m.bkkinfo.hu/alert.php?id=102",
+            "Lejárt terelés", null, listOf(bus5), true
+        )
+        private val alert103 = Alert(
+            "103", 4102444800, 0, 1500000300, "http://m.bkkinfo.hu/alert.php?id=103",
+            "Esti vágányzár", null, listOf(nightBus956), true
+        )
+        private val alert105 = Alert(
+            "105", 4102444800, 4102531200, 1500000500, "http://m.bkkinfo.hu/alert.php?id=105",
+            "Metrópótlás", null, listOf(bus5, nostalgiaBus, subwayM2), true
+        )
+        private val alert106 = Alert(
+            "106", 0, 0, 1500000600, "http://m.bkkinfo.hu/alert.php?id=106",
+            "Hajójárat szünetel", null, listOf(ferryD12, unknownRoute), true
+        )
+    }
+
+    private fun createParser(isDebugMode: Boolean = false): AlertListParser {
+        return AlertListParser(isDebugMode, routeRegistry) { crashLogs.add(it) }
+    }
+
+    private fun parseFixture(parser: AlertListParser = createParser()): AlertListParser.Result {
+        return parseFixture(FIXTURE, parser::parse)
+    }
+
+    @Test
+    fun `alerts are parsed with their affected routes`() {
+        val result = parseFixture()
+
+        assertEquals(listOf(alert101, alert102, alert103), result.activeAlerts)
+        assertEquals(listOf(alert105, alert106), result.upcomingAlerts)
+    }
+
+    @Test
+    fun `active alerts are partitioned by their start and end time`() {
+        val result = parseFixture()
+
+        // 102 has already ended, 103 is active but hasn't started yet
+        assertEquals(listOf(alert101), result.alertsToday)
+        assertEquals(listOf(alert103, alert105, alert106), result.alertsFuture)
+    }
+
+    @Test
+    fun `ended alerts are kept in debug mode`() {
+        val result = parseFixture(createParser(isDebugMode = true))
+
+        assertEquals(listOf(alert101, alert102), result.alertsToday)
+        assertEquals(listOf(alert103, alert105, alert106), result.alertsFuture)
+    }
+
+    @Test
+    fun `repartition keeps the upcoming alerts`() {
+        val parser = createParser()
+        val result = parser.repartition(parseFixture(parser))
+
+        assertEquals(listOf(alert101), result.alertsToday)
+        assertEquals(listOf(alert103, alert105, alert106), result.alertsFuture)
+    }
+
+    @Test
+    fun `invalid alerts are skipped`() {
+        val result = parseFixture(createParser(isDebugMode = true))
+
+        // 104 has no modification time
+        val ids = (result.alertsToday + result.alertsFuture).map { it.id }
+        assertEquals(listOf("101", "102", "103", "105", "106"), ids)
+        assertTrue(crashLogs.any { it.startsWith("Alert parse: failed to parse") })
+    }
+
+    @Test
+    fun `night buses get the night bus colors`() {
+        // The API lists night buses with their own type, but they are parsed as buses
+        val routes = parseFixture().alertsToday[0].affectedRoutes
+
+        val nightBuses = routes.filter { it.color == NIGHT_BUS_COLOR }
+        assertEquals(listOf(nightBus956, nightBus979A), nightBuses)
+    }
+
+    @Test
+    fun `routes are shared between the alerts of a response`() {
+        val result = parseFixture()
+
+        val route = result.alertsToday[0].affectedRoutes[2]
+        assertSame(route, result.alertsFuture[0].affectedRoutes[0])
+    }
+
+    @Test
+    fun `routes are looked up in the registry between responses`() {
+        val first = parseFixture()
+        val second = parseFixture()
+
+        val route = first.alertsToday[0].affectedRoutes[2]
+        assertSame(route, second.alertsToday[0].affectedRoutes[2])
+        assertSame(route, routeRegistry.intern(nightBus956))
+    }
+
+    @Test(expected = JSONException::class)
+    fun `missing alert list is a parse error`() {
+        parseJson("""{"active": [], "soon": []}""", createParser()::parse)
+    }
+}
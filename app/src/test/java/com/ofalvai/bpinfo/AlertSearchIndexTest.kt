@@ -0,0 +1,66 @@
+package com.ofalvai.bpinfo
+
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+import com.ofalvai.bpinfo.repository.AlertListDelta
+import com.ofalvai.bpinfo.repository.AlertSearchIndex
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class AlertSearchIndexTest {
+
+    companion object {
+        private val tram = Route(
+            "BKK_3600", "60", "Széchenyi-hegy, Gyermekvasút", null, RouteType.TRAM, 0, 0, false
+        )
+
+        private val alert1 = Alert(
+            "alert-1", 0, 0, 0, null, "Villamospótló busz",
+            "<p>A <b>fogaskerekű</b> helyett&nbsp;pótlóbusz közlekedik.</p>", listOf(tram), false
+        )
+        private val alert2 = Alert(
+            "alert-2", 0, 0, 0, null, "Terelés", null, emptyList(), true
+        )
+    }
+
+    private lateinit var searchIndex: AlertSearchIndex
+
+    @Before
+    fun setUp() {
+        searchIndex = AlertSearchIndex()
+        searchIndex.update(AlertListDelta(listOf(alert1, alert2), emptyList(), emptyList(), emptyList()))
+    }
+
+    @Test
+    fun `search matches word prefixes without accents`() {
+        assertEquals(setOf("alert-1"), searchIndex.search("villamospotlo"))
+        assertEquals(setOf("alert-1"), searchIndex.search("FOGASK"))
+        assertEquals(setOf("alert-2"), searchIndex.search("tereles"))
+    }
+
+    @Test
+    fun `search matches route names and ignores HTML`() {
+        assertEquals(setOf("alert-1"), searchIndex.search("60"))
+        assertEquals(setOf("alert-1"), searchIndex.search("gyermekvasut"))
+        assertTrue(searchIndex.search("nbsp").isEmpty())
+    }
+
+    @Test
+    fun `every word of the query must match`() {
+        assertEquals(setOf("alert-1"), searchIndex.search("busz helyett"))
+        assertTrue(searchIndex.search("busz tereles").isEmpty())
+    }
+
+    @Test
+    fun `removed and modified alerts are indexed again`() {
+        val modified = alert2.copy(header = "Vágányzár", timestamp = 1)
+        searchIndex.update(AlertListDelta(emptyList(), listOf(alert1), listOf(modified), emptyList()))
+
+        assertTrue(searchIndex.search("busz").isEmpty())
+        assertTrue(searchIndex.search("tereles").isEmpty())
+        assertEquals(setOf("alert-2"), searchIndex.search("vagany"))
+    }
+}
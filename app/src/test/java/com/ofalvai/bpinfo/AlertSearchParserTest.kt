@@ -0,0 +1,176 @@
+package com.ofalvai.bpinfo
+
+import com.ofalvai.bpinfo.api.bkkfutar.AlertSearchParser
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+import org.json.JSONException
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertSame
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AlertSearchParserTest : ParserTest() {
+
+    companion object {
+        private const val FIXTURE = "futar-alert-search.json"
+
+        // Output of the previous, JSONObject based parser for the fixture
+        private val bus5 = Route(
+            "BKK_0050", "5", "Pasaréti tér / Rákospalota, Kossuth utca",
+            "Pasaréti tér | Rákospalota, Kossuth utca", RouteType.BUS,
+            0xFF009FE3.toInt(), 0xFFFFFFFF.toInt(), false
+        )
+        private val tram6 = Route(
+            "BKK_3060", "6", null, null, RouteType.TRAM,
+            0xFFFFD800.toInt(), 0xFF000000.toInt(), false
+        )
+        private val gondola = Route(
+            "BKK_9999", "Gondola", null, "Nem létező járat", RouteType.OTHER,
+            0xFFEEEEEE.toInt(), 0xFFBBBBBB.toInt(), false
+        )
+
+        private val alert1 = Alert(
+            "BKK_alert-1", 1500000000, 0, 1500000100, "http://bkk.hu/alert-1&lang=en",
+            "Replacement bus", "<p>Description</p>", listOf(bus5, tram6), false
+        )
+        private val alert2 = Alert(
+            "BKK_alert-2", 4102444800, 4102531200, 1500000200, null,
+            "Terelés", "<p>Terelés leírás</p>", listOf(gondola), false
+        )
+        private val alert5 = Alert(
+            "BKK_alert-5", 1500000000, 1600000000, 1500000500, "http://bkk.hu/alert-5&lang=en",
+            "Stop relocation", "<p>Relocation</p>", emptyList(), false
+        )
+    }
+
+    private val parser = createParser()
+
+    private fun createParser(isDebugMode: Boolean = false): AlertSearchParser {
+        return AlertSearchParser("en", isDebugMode, routeRegistry) { crashLogs.add(it) }
+    }
+
+    private fun parseFixture(): AlertSearchParser.Result = parseFixture(FIXTURE, parser::parse)
+
+    private fun parse(json: String): AlertSearchParser.Result = parseJson(json, parser::parse)
+
+    @Test
+    fun `alerts are parsed with the affected routes of the references`() {
+        val result = parseFixture()
+
+        assertEquals(listOf(alert1, alert2, alert5), result.alerts)
+    }
+
+    @Test
+    fun `alerts are partitioned by their start and end time`() {
+        val result = parseFixture()
+
+        // BKK_alert-5 has already ended
+        assertEquals(listOf(alert1), result.alertsToday)
+        assertEquals(listOf(alert2), result.alertsFuture)
+    }
+
+    @Test
+    fun `ended alerts are kept in debug mode`() {
+        val result = parseFixture(FIXTURE, createParser(isDebugMode = true)::parse)
+
+        assertEquals(listOf(alert1, alert5), result.alertsToday)
+        assertEquals(listOf(alert2), result.alertsFuture)
+    }
+
+    @Test
+    fun `repartition splits the alerts of a previous result again`() {
+        val result = parser.repartition(parseFixture())
+
+        assertEquals(listOf(alert1), result.alertsToday)
+        assertEquals(listOf(alert2), result.alertsFuture)
+    }
+
+    @Test
+    fun `missing translations fall back to someTranslation`() {
+        val alert = parseFixture().alerts.single { it.id == "BKK_alert-2" }
+
+        assertEquals("Terelés", alert.header)
+        assertEquals("<p>Terelés leírás</p>", alert.description)
+        assertTrue(crashLogs.contains("Alert parse: header translation missing"))
+        assertTrue(crashLogs.contains("Alert parse: description translation missing"))
+    }
+
+    @Test
+    fun `invalid alerts and the update warning are skipped`() {
+        val result = parseFixture()
+
+        // BKK_alert-3 has no timestamp, BKK_alert-4 is the update warning
+        val ids = result.alerts.map { it.id }
+        assertEquals(listOf("BKK_alert-1", "BKK_alert-2", "BKK_alert-5"), ids)
+        assertTrue(crashLogs.any { it.startsWith("Alert parse: failed to parse") })
+    }
+
+    @Test
+    fun `replacement routes and routes without colors are skipped`() {
+        val result = parseFixture()
+
+        val expectedRoutes = mapOf(bus5.id to bus5, tram6.id to tram6, gondola.id to gondola)
+        assertEquals(expectedRoutes, result.routes)
+        assertTrue(crashLogs.any { it.startsWith("Route parse: failed at key BKK_0001") })
+    }
+
+    @Test
+    fun `unknown route types fall back to OTHER`() {
+        val route = parseFixture().routes.getValue("BKK_9999")
+
+        assertEquals(RouteType.OTHER, route.type)
+    }
+
+    @Test
+    fun `routes are shared through the registry between responses`() {
+        val first = parseFixture()
+        val second = parseFixture()
+
+        val route = first.alerts[0].affectedRoutes[0]
+        assertSame(route, second.alerts[0].affectedRoutes[0])
+        assertSame(route, second.routes["BKK_0050"])
+    }
+
+    @Test
+    fun `routes listed after the alerts are resolved`() {
+        val json = """
+            {"data": {
+              "entry": {"alertIds": ["a"]},
+              "references": {
+                "alerts": {"a": {"id": "a", "start": 1500000000, "timestamp": 1,
+                  "routeIds": ["BKK_3060"], "url": {"someTranslation": null},
+                  "header": {"translations": {"en": "header"}},
+                  "description": {"translations": {"en": "description"}}}},
+                "routes": {"BKK_3060": {"id": "BKK_3060", "shortName": "6", "type": "TRAM",
+                  "color": "FFD800", "textColor": "000000"}}
+              }
+            }}
+        """.trimIndent()
+
+        val alert = parse(json).alerts.single()
+
+        assertEquals(listOf(tram6), alert.affectedRoutes)
+    }
+
+    @Test
+    fun `empty alert ID list results in no alerts`() {
+        val json = """
+            {"data": {
+              "entry": {"alertIds": []},
+              "references": {"routes": {"BKK_3060": {"id": "BKK_3060", "shortName": "6",
+                "type": "TRAM", "color": "FFD800", "textColor": "000000"}}}
+            }}
+        """.trimIndent()
+
+        val result = parse(json)
+
+        assertTrue(result.alerts.isEmpty())
+        assertEquals(mapOf(tram6.id to tram6), result.routes)
+    }
+
+    @Test(expected = JSONException::class)
+    fun `missing data object is a parse error`() {
+        parse("""{"version": 3, "status": "OK"}""")
+    }
+}
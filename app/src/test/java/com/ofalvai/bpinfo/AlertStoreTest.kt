@@ -0,0 +1,75 @@
+package com.ofalvai.bpinfo
+
+import com.ofalvai.bpinfo.model.Alert
+import com.ofalvai.bpinfo.model.Route
+import com.ofalvai.bpinfo.model.RouteType
+import com.ofalvai.bpinfo.repository.AlertStore
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+class AlertStoreTest {
+
+    companion object {
+        private val bus = Route("BKK_0130", "13", null, null, RouteType.BUS, 0, 0, false)
+        private val tram = Route("BKK_3600", "60", null, null, RouteType.TRAM, 0, 0, false)
+        private val subway = Route("BKK_5300", "M3", null, null, RouteType.SUBWAY, 0, 0, false)
+
+        private val todayAlerts = listOf(
+            Alert("alert-1", 100, 200, 0, null, null, null, listOf(bus, bus), true),
+            Alert("alert-2", 150, 0, 0, null, null, null, listOf(bus, tram), true)
+        )
+        private val futureAlerts = listOf(
+            Alert("alert-3", 300, 400, 0, null, null, null, listOf(subway), true)
+        )
+    }
+
+    private lateinit var alertStore: AlertStore
+
+    @Before
+    fun setUp() {
+        alertStore = AlertStore()
+        alertStore.update(todayAlerts, futureAlerts)
+    }
+
+    @Test
+    fun `get alert by ID`() {
+        assertEquals(futureAlerts[0], alertStore.getAlert("alert-3"))
+        assertNull(alertStore.getAlert("unknown"))
+    }
+
+    @Test
+    fun `alert details are kept until the alert is modified`() {
+        val detailed = todayAlerts[0].copy(description = "Details", isPartial = false)
+        alertStore.putDetails(detailed)
+        assertEquals(detailed, alertStore.getAlert("alert-1"))
+
+        alertStore.update(todayAlerts, futureAlerts)
+        assertEquals(detailed, alertStore.getAlert("alert-1"))
+
+        val modified = todayAlerts[0].copy(timestamp = 1)
+        alertStore.update(listOf(modified, todayAlerts[1]), futureAlerts)
+        assertEquals(modified, alertStore.getAlert("alert-1"))
+    }
+
+    @Test
+    fun `update returns delta compared to previous lists`() {
+        val modified = todayAlerts[0].copy(timestamp = 1)
+        val added = Alert("alert-4", 500, 600, 0, null, null, null, emptyList(), true)
+        val moved = futureAlerts[0]
+
+        val delta = alertStore.update(listOf(modified, moved), listOf(added))
+
+        assertEquals(listOf(added), delta.added)
+        assertEquals(listOf(todayAlerts[1]), delta.removed)
+        assertEquals(listOf(modified), delta.modified)
+        assertEquals(listOf(moved), delta.moved)
+    }
+
+    @Test
+    fun `update with same lists returns empty delta`() {
+        val delta = alertStore.update(todayAlerts.toList(), futureAlerts.toList())
+
+        assertTrue(delta.isEmpty())
+    }
+}
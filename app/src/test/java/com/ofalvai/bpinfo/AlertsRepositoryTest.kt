@@ -9,13 +9,19 @@ import androidx.lifecycle.Observer
 import com.android.volley.NoConnectionError
 import com.android.volley.VolleyError
 import com.ofalvai.bpinfo.api.AlertApiClient
+import com.ofalvai.bpinfo.api.Cancellable
 import com.ofalvai.bpinfo.model.Alert
-import com.ofalvai.bpinfo.model.Resource
 import com.ofalvai.bpinfo.model.Status
+import com.ofalvai.bpinfo.repository.AlertCache
+import com.ofalvai.bpinfo.repository.AlertStore
 import com.ofalvai.bpinfo.repository.AlertsRepository
 import com.ofalvai.bpinfo.ui.alertlist.AlertListType
 import com.ofalvai.bpinfo.util.Analytics
 import com.ofalvai.bpinfo.util.any
+import kotlinx.coroutines.cancelAndJoin
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
 import org.json.JSONException
 import org.junit.Assert.*
 import org.junit.Before
@@ -45,6 +51,7 @@ class AlertsRepositoryTest {
     private lateinit var alertsRepository: AlertsRepository
     private lateinit var alertApiClient: AlertApiClient
     private lateinit var networkInfo: NetworkInfo
+    private lateinit var alertCache: AlertCache
 
     @Before
     fun setUp() {
@@ -53,6 +60,7 @@ class AlertsRepositoryTest {
         val analytics = mock(Analytics::class.java)
         val appContext = mock(Context::class.java)
         val connectivityManager = mock(ConnectivityManager::class.java)
+        alertCache = mock(AlertCache::class.java)
 
         doNothing().`when`(analytics).logException(any())
         `when`(appContext.getSystemService<ConnectivityManager>())
@@ -60,7 +68,11 @@ class AlertsRepositoryTest {
         `when`(connectivityManager.activeNetworkInfo).thenReturn(networkInfo)
         // networkInfo.isConnected is mocked in each test case
 
-        alertsRepository = AlertsRepository(alertApiClient, appContext, analytics)
+        // alertCache.load() is mocked in the cache test cases, by default there's no cached data
+
+        alertsRepository = AlertsRepository(
+            alertApiClient, appContext, analytics, alertCache, AlertStore()
+        )
     }
 
     @Test
@@ -70,6 +82,7 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
             val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
             alertListCallback.onAlertListResponse(testTodayAlerts, testFutureAlerts)
+            Cancellable { }
         }
 
         alertsRepository.fetchAlerts()
@@ -81,6 +94,48 @@ class AlertsRepositoryTest {
 
     }
 
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `first list fetch displays cached alerts without network connection`() {
+        `when`(networkInfo.isConnected).thenReturn(false)
+
+        `when`(alertCache.load(any())).thenAnswer {
+            val callback = it.arguments[0] as (AlertCache.Entry) -> Unit
+            callback(AlertCache.Entry(System.currentTimeMillis(), testTodayAlerts, testFutureAlerts))
+        }
+
+        alertsRepository.fetchAlerts()
+
+        assertEquals(testTodayAlerts, alertsRepository.todayAlerts.value)
+        assertEquals(testFutureAlerts, alertsRepository.futureAlerts.value)
+        assertEquals(Status.Error, alertsRepository.status.value)
+    }
+
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `cached alerts are not displayed after network response`() {
+        `when`(networkInfo.isConnected).thenReturn(true)
+
+        var cacheCallback: ((AlertCache.Entry) -> Unit)? = null
+        `when`(alertCache.load(any())).thenAnswer {
+            // The cache is read later than the network response arrives
+            cacheCallback = it.arguments[0] as (AlertCache.Entry) -> Unit
+            Unit
+        }
+        `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
+            val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
+            alertListCallback.onAlertListResponse(testTodayAlerts, testFutureAlerts)
+            Cancellable { }
+        }
+
+        alertsRepository.fetchAlerts()
+        cacheCallback?.invoke(AlertCache.Entry(System.currentTimeMillis(), emptyList(), emptyList()))
+
+        assertEquals(testTodayAlerts, alertsRepository.todayAlerts.value)
+        assertEquals(testFutureAlerts, alertsRepository.futureAlerts.value)
+        verify(alertCache, times(1)).save(testTodayAlerts, testFutureAlerts)
+    }
+
     @Test
     fun `first list fetch without network connection`() {
         `when`(networkInfo.isConnected).thenReturn(false)
@@ -103,6 +158,7 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
             val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
             alertListCallback.onAlertListResponse(testTodayAlerts, testFutureAlerts)
+            Cancellable { }
         }
 
         val todayAlertsObserver = mock(Observer::class.java) as Observer<List<Alert>>
@@ -133,6 +189,7 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
             val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
             alertListCallback.onAlertListResponse(testTodayAlerts, testFutureAlerts)
+            Cancellable { }
         }
 
         val todayAlertsObserver = mock(Observer::class.java) as Observer<List<Alert>>
@@ -160,6 +217,7 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
             val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
             alertListCallback.onError(VolleyError())
+            Cancellable { }
         }
 
         alertsRepository.fetchAlerts()
@@ -177,6 +235,7 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
             val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
             alertListCallback.onError(JSONException("Mocked JSON Exception"))
+            Cancellable { }
         }
 
         alertsRepository.fetchAlerts()
@@ -194,6 +253,7 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
             val alertListCallback = it.arguments[0] as AlertApiClient.AlertListCallback
             alertListCallback.onError(Exception())
+            Cancellable { }
         }
 
         alertsRepository.fetchAlerts()
@@ -209,24 +269,91 @@ class AlertsRepositoryTest {
         `when`(alertApiClient.fetchAlert(any(), any(), any())).thenAnswer {
             val alertDetailCallback = it.arguments[2] as AlertApiClient.AlertDetailCallback
             alertDetailCallback.onAlertResponse(testAlert)
+            Cancellable { }
         }
 
-        val alertLiveData = alertsRepository.fetchAlert(testAlert.id, AlertListType.Today)
+        val alert = runBlocking {
+            alertsRepository.fetchAlert(testAlert.id, AlertListType.Today)
+        }
 
-        assertTrue(alertLiveData.value is Resource.Success)
-        assertEquals(testAlert, (alertLiveData.value as Resource.Success).value)
+        assertEquals(testAlert, alert)
     }
 
     @Test
     fun `unsuccessful alert detail fetch`() {
+        val exception = Exception()
         `when`(alertApiClient.fetchAlert(any(), any(), any())).thenAnswer {
             val alertDetailCallback = it.arguments[2] as AlertApiClient.AlertDetailCallback
-            alertDetailCallback.onError(Exception())
+            alertDetailCallback.onError(exception)
+            Cancellable { }
+        }
+
+        val result = runCatching {
+            runBlocking { alertsRepository.fetchAlert(testAlert.id, AlertListType.Today) }
+        }
+
+        assertTrue(result.isFailure)
+    }
+
+    @Test
+    fun `cancelled alert detail fetch cancels the request`() {
+        val request = mock(Cancellable::class.java)
+        `when`(alertApiClient.fetchAlert(any(), any(), any())).thenReturn(request)
+
+        runBlocking {
+            val job = launch { alertsRepository.fetchAlert(testAlert.id, AlertListType.Today) }
+            yield()
+            job.cancelAndJoin()
+        }
+
+        verify(request, times(1)).cancel()
+    }
+
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `cached alert lists are distinguished from the network response`() {
+        `when`(networkInfo.isConnected).thenReturn(true)
+
+        // Same alerts, but a different list instance than the network response
+        val cachedTodayAlerts = testTodayAlerts.toList()
+        `when`(alertCache.load(any())).thenAnswer {
+            val callback = it.arguments[0] as (AlertCache.Entry) -> Unit
+            callback(AlertCache.Entry(System.currentTimeMillis(), cachedTodayAlerts, emptyList()))
+        }
+        var listCallback: AlertApiClient.AlertListCallback? = null
+        `when`(alertApiClient.fetchAlertList(any())).thenAnswer {
+            listCallback = it.arguments[0] as AlertApiClient.AlertListCallback
+            Cancellable { }
         }
 
-        val alertLiveData = alertsRepository.fetchAlert(testAlert.id, AlertListType.Today)
+        alertsRepository.fetchAlerts()
+
+        assertSame(cachedTodayAlerts, alertsRepository.todayAlerts.value)
+        assertTrue(alertsRepository.isCachedList(cachedTodayAlerts))
+
+        listCallback?.onAlertListResponse(testTodayAlerts, testFutureAlerts)
+
+        assertSame(testTodayAlerts, alertsRepository.todayAlerts.value)
+        assertFalse(alertsRepository.isCachedList(testTodayAlerts))
+    }
+
+    @Test
+    @Suppress("UNCHECKED_CAST")
+    fun `cached alert details are displayed without fetching them`() {
+        `when`(alertCache.loadDetails(any(), any())).thenAnswer {
+            val callback = it.arguments[1] as (Alert?) -> Unit
+            callback(testAlert)
+        }
+
+        var cachedAlert: Alert? = null
+        alertsRepository.loadCachedAlert(testAlert.id) { cachedAlert = it }
+        val fetchedAlert = runBlocking {
+            alertsRepository.fetchAlert(testAlert.id, AlertListType.Today)
+        }
 
-        assertTrue(alertLiveData.value is Resource.Error)
+        assertEquals(testAlert, cachedAlert)
+        assertEquals(testAlert, fetchedAlert)
+        verify(alertApiClient, never()).fetchAlert(any(), any(), any())
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,42 @@
+package com.ofalvai.bpinfo
+
+import android.app.Application
+import android.os.Build
+import android.util.JsonReader
+import com.ofalvai.bpinfo.api.RouteRegistry
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import java.io.StringReader
+
+/**
+ * Base of the API response parser tests. The parsers read android.util.JsonReader and use
+ * android.graphics.Color, which are only stubs in local unit tests, so these tests run on
+ * Robolectric.
+ */
+@RunWith(RobolectricTestRunner::class)
+@Config(sdk = [Build.VERSION_CODES.P], application = Application::class)
+abstract class ParserTest {
+
+    /**
+     * Messages logged by the parser under test, instead of Crashlytics
+     */
+    protected val crashLogs = ArrayList<String>()
+
+    /**
+     * A new registry for every test, like the one of a new session
+     */
+    protected val routeRegistry = RouteRegistry()
+
+    /**
+     * Parses a JSON file of the test resources
+     */
+    protected fun <T> parseFixture(fileName: String, parse: (JsonReader) -> T): T {
+        val stream = javaClass.classLoader!!.getResourceAsStream(fileName)
+        return JsonReader(stream.reader()).use(parse)
+    }
+
+    protected fun <T> parseJson(json: String, parse: (JsonReader) -> T): T {
+        return JsonReader(StringReader(json)).use(parse)
+    }
+}